@@ -0,0 +1,90 @@
+package com.optocom.imarinfr.opi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Debug;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// a trial as served from the binary protocol, parsed into a pooled stimulus and
+// presented, must not allocate once warmed up. Counted across the process, so the
+// presenter, frame scheduler and GL threads are included, where an allocation could
+// delay the onset, and on the thread that calls presentStimulus
+@RunWith(AndroidJUnit4.class)
+public class AllocationTest {
+    private static final int WARMUP = 5;
+    private static final int TRIALS = 20;
+    private static final int STEPS = 3;
+
+    private ActivityScenario<Main> scenario;
+    private Renderer renderer;
+
+    @Before
+    public void setUp() {
+        scenario = Viewer.launch();
+        renderer = Viewer.renderer(scenario);
+    }
+
+    @After
+    public void tearDown() {
+        if(scenario != null) scenario.close();
+    }
+
+    // binary stimulus message with global parameters and STEPS steps without pattern
+    private static ByteBuffer message() {
+        ByteBuffer buf = ByteBuffer.allocate(Stimulus.GLOBAL_PARS * 4 + STEPS * Stimulus.STEP_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        float lum = Calibration.current().max() / 2;
+        buf.putInt(STEPS).putInt(60).putInt(150);
+        for(int i = 0; i < STEPS; i++) {
+            buf.putInt(2).putInt(0);                                  // eye, type
+            buf.putFloat(3 * i).putFloat(-3 * i).putFloat(0.43f).putFloat(0.43f); // cx, cy, sx, sy
+            buf.putFloat(0).putInt(20).putFloat(lum);                 // theta, tstep, lum
+            buf.putFloat(1).putFloat(1).putFloat(1).putFloat(1);      // color
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void trial(StimulusPool pool, ByteBuffer buf) {
+        Stimulus stim = pool.acquire();
+        buf.rewind();
+        assertTrue(stim.parseParameters(buf));
+        renderer.presentStimulus(stim);
+        pool.release(stim);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void trialDoesNotAllocate() {
+        StimulusPool pool = new StimulusPool(2, STEPS);
+        ByteBuffer buf = message();
+        for(int i = 0; i < WARMUP; i++) trial(pool, buf);
+
+        Debug.resetGlobalAllocCount();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for(int i = 0; i < TRIALS; i++) trial(pool, buf);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        int global = Debug.getGlobalAllocCount();
+        int thread = Debug.getThreadAllocCount();
+        assertEquals("objects allocated by the presenting thread in " + TRIALS + " trials", 0, thread);
+        // threads the test does not drive, e.g. binder or sensor callbacks, may allocate
+        // now and then, but a path that allocates on every trial makes it at least TRIALS
+        assertTrue("objects allocated in the process in " + TRIALS + " trials: " + global,
+                global < TRIALS);
+    }
+}
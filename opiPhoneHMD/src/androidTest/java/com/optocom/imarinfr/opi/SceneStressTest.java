@@ -0,0 +1,127 @@
+package com.optocom.imarinfr.opi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.opengl.GLSurfaceView;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// presentations and background changes from several threads at once, while the GL thread
+// keeps checking that the scene it draws is never a half-written step or background
+@RunWith(AndroidJUnit4.class)
+public class SceneStressTest {
+    private static final int PRESENTERS = 2;
+    private static final int BACKGROUNDS = 2;
+    private static final int TRIALS = 40; // per presenter
+
+    private ActivityScenario<Main> scenario;
+    private Renderer renderer;
+    private GLSurfaceView view;
+
+    private final AtomicInteger torn = new AtomicInteger();
+    private final AtomicLong checks = new AtomicLong();
+    private volatile boolean running = true;
+
+    @Before
+    public void setUp() {
+        scenario = Viewer.launch();
+        renderer = Viewer.renderer(scenario);
+        view = Viewer.view(scenario);
+    }
+
+    @After
+    public void tearDown() {
+        running = false;
+        if(scenario != null) scenario.close();
+    }
+
+    // runs on the GL thread between frames, so it sees the scene as writeFrame does
+    private void checkScene() {
+        Scene scene = renderer.getScene();
+        Scene.Step st = scene.step;
+        float v = st.lum;
+        if(st.cx != v || st.cy != v || st.sx != v || st.sy != v ||
+                st.col[0] != v || st.col[1] != v || st.col[2] != v || st.col[3] != v)
+            torn.incrementAndGet();
+        Background bg = scene.bg;
+        float b = bg.bglum;
+        if(bg.bgcol[0] != b || bg.bgcol[3] != b || bg.fixlum != b || bg.fixcx != b || bg.fixcol[1] != b)
+            torn.incrementAndGet();
+        checks.incrementAndGet();
+    }
+
+    private static Background background(float b) {
+        Background bg = new Background();
+        bg.bglum = bg.fixlum = bg.fixcx = bg.fixcy = bg.fixsx = bg.fixsy = b;
+        bg.bgcol = new float[]{b, b, b, b};
+        bg.fixcol = new float[]{b, b, b, b};
+        return bg;
+    }
+
+    @Test
+    public void sceneIsNeverTorn() throws InterruptedException {
+        renderer.changeBackground(background(0));
+        Runnable check = this::checkScene;
+        Thread checker = new Thread(() -> {
+            while(running) {
+                view.queueEvent(check);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        Thread[] changers = new Thread[BACKGROUNDS];
+        for(int t = 0; t < BACKGROUNDS; t++) {
+            int seed = t;
+            changers[t] = new Thread(() -> {
+                for(int i = seed; running; i += BACKGROUNDS) {
+                    renderer.changeBackground(background((i % 256) / 256f));
+                    Thread.yield();
+                }
+            });
+        }
+        StimulusPool pool = new StimulusPool(PRESENTERS, 4);
+        AtomicInteger presented = new AtomicInteger();
+        Thread[] presenters = new Thread[PRESENTERS];
+        for(int t = 0; t < PRESENTERS; t++) {
+            int seed = t;
+            presenters[t] = new Thread(() -> {
+                for(int i = 0; i < TRIALS; i++) {
+                    Stimulus stim = pool.acquire();
+                    // steps vary in number so the snapshot sets are reused in every way
+                    Viewer.fill(stim, 1 + (i + seed) % 4, ((i * PRESENTERS + seed) % 128) / 256f,
+                            20, 60, 150);
+                    renderer.presentStimulus(stim);
+                    pool.release(stim);
+                    presented.incrementAndGet();
+                }
+            });
+        }
+        checker.start();
+        for(Thread changer : changers) changer.start();
+        for(Thread presenter : presenters) presenter.start();
+        for(Thread presenter : presenters) presenter.join(TimeUnit.MINUTES.toMillis(2));
+        running = false;
+        for(Thread changer : changers) changer.join();
+        checker.join();
+
+        assertEquals(PRESENTERS * TRIALS, presented.get());
+        assertTrue("the GL thread did not check the scene", checks.get() > 0);
+        assertEquals("half-written steps or backgrounds seen", 0, torn.get());
+        assertSame(Scene.Step.BLANK, renderer.getScene().step);
+    }
+}
@@ -0,0 +1,122 @@
+package com.optocom.imarinfr.opi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// the response window and the steps are timed with waits rather than by spinning: over
+// many trials the presenting thread must barely use the CPU, the window must close on
+// time, every step must be shown for its frames, and a response must end the window
+// without delay
+@RunWith(AndroidJUnit4.class)
+public class TimingTest {
+    private static final String TAG = "TimingTest";
+    private static final int WARMUP = 3;
+    private static final int TRIALS = 30;
+    private static final int STEPS = 2;
+    private static final long TSTEP = 50;  // ms
+    private static final long D = 100;     // ms
+    private static final long W = 300;     // ms
+    // how late the window may close or a response may end a trial, for scheduling
+    private static final long SLACK = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private ActivityScenario<Main> scenario;
+    private Renderer renderer;
+    private float refreshRate;
+    private final ScheduledExecutorService trigger = Executors.newSingleThreadScheduledExecutor();
+
+    @Before
+    public void setUp() {
+        scenario = Viewer.launch();
+        renderer = Viewer.renderer(scenario);
+        refreshRate = Viewer.refreshRate(scenario);
+    }
+
+    @After
+    public void tearDown() {
+        trigger.shutdownNow();
+        if(scenario != null) scenario.close();
+    }
+
+    private Stimulus stimulus() {
+        Stimulus stim = new Stimulus();
+        Viewer.fill(stim, STEPS, 0.5f, TSTEP, D, W);
+        return stim;
+    }
+
+    @Test
+    public void windowIsTimedWithoutSpinning() {
+        Stimulus stim = stimulus();
+        FrameScheduler frames = new FrameScheduler(refreshRate);
+        long expected = (long) STEPS * frames.toFrames(TSTEP);
+        for(int i = 0; i < WARMUP; i++) renderer.presentStimulus(stim);
+
+        long maxLate = 0;
+        long wall = System.nanoTime();
+        long threadCpu = Debug.threadCpuTimeNanos();
+        long processCpu = Process.getElapsedCpuTime();
+        for(int i = 0; i < TRIALS; i++) {
+            long start = System.nanoTime();
+            assertEquals("response without a trigger", 0, renderer.presentStimulus(stim));
+            long late = System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(W);
+            assertTrue("window closed " + -late + " ns early", late >= 0);
+            maxLate = Math.max(maxLate, late);
+            assertTrue("shown for " + stim.frames + " frames out of " + expected, stim.frames >= expected);
+        }
+        wall = System.nanoTime() - wall;
+        threadCpu = Debug.threadCpuTimeNanos() - threadCpu;
+        processCpu = TimeUnit.MILLISECONDS.toNanos(Process.getElapsedCpuTime() - processCpu);
+        Log.i(TAG, "wall " + wall + " ns, presenting thread cpu " + threadCpu + " ns, process cpu "
+                + processCpu + " ns, window closed at most " + maxLate + " ns late");
+
+        assertTrue("window closed " + maxLate + " ns late", maxLate < SLACK);
+        // spinning would keep the presenting thread busy for the whole window
+        assertTrue("presenting thread used " + threadCpu + " ns of cpu in " + wall + " ns",
+                threadCpu < wall / 20);
+        // and with the presenter thread spinning as well, the process would use two cores
+        assertTrue("process used " + processCpu + " ns of cpu in " + wall + " ns", processCpu < wall);
+    }
+
+    @Test
+    public void responseEndsWindow() {
+        Stimulus stim = stimulus();
+        for(int i = 0; i < WARMUP; i++) renderer.presentStimulus(stim);
+
+        AtomicLong triggered = new AtomicLong();
+        long maxDelay = 0;
+        for(int i = 0; i < TRIALS; i++) {
+            // respond at different times after the minimum presentation time
+            long at = D + 20 + i * (W - D - 40) / TRIALS;
+            long start = System.nanoTime();
+            trigger.schedule(() -> {
+                long now = System.nanoTime();
+                triggered.set(now);
+                renderer.onTriggerEvent(now);
+            }, at, TimeUnit.MILLISECONDS);
+            long response = renderer.presentStimulus(stim);
+            long end = System.nanoTime();
+            assertTrue("response not recorded", response > 0);
+            assertTrue("response time " + response + " ns longer than the trial",
+                    response <= triggered.get() - start);
+            maxDelay = Math.max(maxDelay, end - triggered.get());
+        }
+        Log.i(TAG, "trial ended at most " + maxDelay + " ns after the response");
+        assertTrue("trial ended " + maxDelay + " ns after the response", maxDelay < SLACK);
+    }
+}
@@ -0,0 +1,68 @@
+package com.optocom.imarinfr.opi;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.opengl.GLSurfaceView;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.cardboard.sdk.qrcode.CardboardParamsUtils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// launches Main with the Cardboard V1 viewer saved, so it does not stop to scan a QR code
+// and the GL thread draws. Tests are skipped where the parameters cannot be saved, e.g.
+// below Android Q, where they go to external storage
+final class Viewer {
+    private Viewer() {
+    }
+
+    static ActivityScenario<Main> launch() {
+        Context context = ApplicationProvider.getApplicationContext();
+        CardboardParamsUtils.saveCardboardV1DeviceParams(context);
+        ActivityScenario<Main> scenario = ActivityScenario.launch(Main.class);
+        assumeTrue("viewer parameters not saved", scenario.getState() == Lifecycle.State.RESUMED);
+        return scenario;
+    }
+
+    static Renderer renderer(ActivityScenario<Main> scenario) {
+        AtomicReference<Renderer> renderer = new AtomicReference<>();
+        scenario.onActivity(main -> renderer.set(main.getRenderer()));
+        return renderer.get();
+    }
+
+    static GLSurfaceView view(ActivityScenario<Main> scenario) {
+        AtomicReference<GLSurfaceView> view = new AtomicReference<>();
+        scenario.onActivity(main -> view.set(main.findViewById(R.id.surface_view)));
+        return view.get();
+    }
+
+    static float refreshRate(ActivityScenario<Main> scenario) {
+        AtomicReference<Float> rate = new AtomicReference<>();
+        scenario.onActivity(main -> rate.set(main.getWindowManager().getDefaultDisplay().getRefreshRate()));
+        return rate.get();
+    }
+
+    // a stimulus where every field of each step that is drawn takes the same value, so
+    // a step that is read while it is being overwritten shows up as mixed values
+    static void fill(Stimulus stim, int nsteps, float value, long tstep, long d, long w) {
+        stim.nsteps = nsteps;
+        stim.d = d;
+        stim.w = w;
+        stim.initStepParams(nsteps);
+        for(int i = 0; i < nsteps; i++) {
+            float v = value + i / 1024f;
+            stim.eye[i] = 2;
+            stim.type[i] = 0;
+            stim.cx[i] = stim.cy[i] = stim.sx[i] = stim.sy[i] = v;
+            stim.theta[i] = 0;
+            stim.tstep[i] = tstep;
+            stim.lum[i] = v;
+            stim.col[i][0] = stim.col[i][1] = stim.col[i][2] = stim.col[i][3] = v;
+            stim.sf[i] = stim.phase[i] = stim.sigma[i] = stim.contrast[i] = 0;
+        }
+    }
+}
@@ -2,16 +2,19 @@ package com.optocom.imarinfr.opi;
 
 import androidx.annotation.NonNull;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 public class Background {
     public int     bgeye;        // eye where to draw the background
-    public float   bglum;        // background luminance from 0 to 1
+    public float   bglum;        // background luminance up to the calibrated maximum
     public float[] bgcol;        // background color
     public int     fixeye;       // eye where to draw the fixation
     public int     fixtype;    // type of target
     public float   fixcx, fixcy; // coordinates of the fixation target center in degrees
     public float   fixsx, fixsy; // size of the fixation target in degrees
     public float   fixtheta;     // rotation of the fixation target in degrees
-    public float   fixlum;       // fixation luminance from 0 to 1
+    public float   fixlum;       // fixation luminance up to the calibrated maximum
     public float[] fixcol;       // fixation color
 
     public Background() {
@@ -75,11 +78,41 @@ public class Background {
         return isValid();
     }
 
+    // binary counterpart of parseParameters: 18 little-endian 32-bit fields in the same order,
+    // with fixation type sent as its numeric code
+    public boolean parseParameters(ByteBuffer buf) {
+        if(buf.remaining() != 18 * 4) return false;
+        try {
+            bgeye     = buf.getInt();
+            bglum     = buf.getFloat();
+            bgcol[0]  = buf.getFloat();
+            bgcol[1]  = buf.getFloat();
+            bgcol[2]  = buf.getFloat();
+            bgcol[3]  = buf.getFloat();
+            fixeye    = buf.getInt();
+            fixtype   = buf.getInt();
+            fixcx     = buf.getFloat();
+            fixcy     = buf.getFloat();
+            fixsx     = buf.getFloat();
+            fixsy     = buf.getFloat();
+            fixtheta  = buf.getFloat();
+            fixlum    = buf.getFloat();
+            fixcol[0] = buf.getFloat();
+            fixcol[1] = buf.getFloat();
+            fixcol[2] = buf.getFloat();
+            fixcol[3] = buf.getFloat();
+        } catch(BufferUnderflowException e) {
+            return false;
+        }
+        return isValid();
+    }
+
     public boolean isValid() {
+        float max = Calibration.current().max();
         return bgeye  >= 0    & bgeye  <= 2      &
                fixeye >= 0    & fixeye <= 2      &
-               bglum  >= 0    & bglum  <= 1      &
-               fixlum >= 0    & fixlum <= 1      &
+               bglum  >= 0    & bglum  <= max    &
+               fixlum >= 0    & fixlum <= max    &
                bgcol[0] >= 0  & bgcol[0] <= 1    &
                bgcol[1] >= 0  & bgcol[1] <= 1    &
                bgcol[2] >= 0  & bgcol[2] <= 1    &
@@ -0,0 +1,102 @@
+package com.optocom.imarinfr.opi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// measured luminance response of the display, so luminance can be requested in cd/m2.
+// The table holds the luminance measured at evenly spaced output levels from 0 to 1.
+// The renderer gets the table as measured and inverts it in the fragment shader, so
+// luminances between measured levels are only interpolated between those two levels.
+// Uncalibrated, luminance is the output level itself, from 0 to 1
+public class Calibration {
+    static final int MAX_LEVELS = 1024; // largest table accepted, as kMaxCalibrationSize in opi_app.h
+
+    private static final String PREFERENCES = "calibration";
+    private static final String TABLE       = "table";
+
+    private static final Calibration UNCALIBRATED = new Calibration(new float[] {0, 1});
+    private static volatile Calibration current = UNCALIBRATED;
+
+    private final float[] table;
+
+    private Calibration(float[] measured) {
+        table = measured;
+    }
+
+    // calibration in use, to validate and scale luminances
+    public static Calibration current() {
+        return current;
+    }
+
+    public static void setCurrent(Calibration calibration) {
+        current = calibration;
+    }
+
+    // number of levels followed by the luminance measured at each. Returns null if not valid
+    public static Calibration parseParameters(String[] pars) {
+        float[] measured;
+        try {
+            int n = Integer.parseInt(pars[0]);
+            if(n < 2 || n > MAX_LEVELS || pars.length != n + 1) return null;
+            measured = new float[n];
+            for(int i = 0; i < n; i++) measured[i] = Float.parseFloat(pars[i + 1]);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        return isValid(measured) ? new Calibration(measured) : null;
+    }
+
+    // binary counterpart of parseParameters
+    public static Calibration parseParameters(ByteBuffer buf) {
+        float[] measured;
+        try {
+            int n = buf.getInt();
+            if(n < 2 || n > MAX_LEVELS || buf.remaining() != n * 4) return null;
+            measured = new float[n];
+            for(int i = 0; i < n; i++) measured[i] = buf.getFloat();
+        } catch(BufferUnderflowException e) {
+            return null;
+        }
+        return isValid(measured) ? new Calibration(measured) : null;
+    }
+
+    // luminance must not decrease with output level, and must span some range
+    private static boolean isValid(float[] measured) {
+        if(!(measured[0] >= 0)) return false;
+        for(int i = 1; i < measured.length; i++)
+            if(!(measured[i] >= measured[i - 1]) || Float.isInfinite(measured[i])) return false;
+        return measured[measured.length - 1] > measured[0];
+    }
+
+    public float min() {
+        return table[0];
+    }
+
+    public float max() {
+        return table[table.length - 1];
+    }
+
+    // luminance measured at each level
+    public float[] table() {
+        return table.clone();
+    }
+
+    // calibrations are kept per phone, so they survive restarts of the app
+    public void save(Context context) {
+        StringBuilder values = new StringBuilder(String.valueOf(table.length));
+        for(float lum : table) values.append(' ').append(lum);
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putString(TABLE, values.toString()).apply();
+    }
+
+    // calibration saved on this phone, uncalibrated if there is none
+    public static Calibration load(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String values = preferences.getString(TABLE, null);
+        Calibration calibration = values != null ? parseParameters(values.split(" ")) : null;
+        return calibration != null ? calibration : UNCALIBRATED;
+    }
+}
@@ -0,0 +1,110 @@
+package com.optocom.imarinfr.opi;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+
+// counts display frames from vsync callbacks, so stimulus steps can last a whole number
+// of frames rather than an approximate number of milliseconds. Callbacks are only
+// requested while someone is waiting for frames
+public class FrameScheduler implements Choreographer.FrameCallback {
+
+    // how much longer than n frames to wait for them, in case vsync callbacks stop,
+    // e.g. with the screen off or the activity paused
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final long frameInterval; // nominal frame interval in ns
+    private final Handler handler;
+    private final Runnable requestFrame = this::requestFrame;
+    private final Object lock = new Object();
+
+    private Choreographer choreographer;
+    private long frames = 0;          // vsyncs counted so far, guarded by lock
+    private long lastFrameTime = 0;   // vsync timestamp of the last callback in ns
+    private int waiting = 0;          // threads waiting for frames, guarded by lock
+    private boolean posted = false;   // a frame callback is pending, guarded by lock
+    private long firstFrameTime = 0;  // vsync timestamp of the first frame of a wait in ns
+
+    public FrameScheduler(float refreshRate) {
+        frameInterval = Math.round(1e9 / refreshRate);
+        HandlerThread thread = new HandlerThread("FrameScheduler", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> choreographer = Choreographer.getInstance());
+    }
+
+    public long frameInterval() {
+        return frameInterval;
+    }
+
+    // number of whole frames closest to a duration in ms, at least one
+    public int toFrames(long ms) {
+        return (int) Math.max(1, Math.round(ms * 1e6 / frameInterval));
+    }
+
+    public long toMillis(long nframes) {
+        return Math.round(nframes * frameInterval / 1e6);
+    }
+
+    // blocks until n more vsyncs have happened and returns how many did,
+    // which may be more than n if vsync callbacks were delayed, or fewer
+    // if they stopped and the wait gave up a second after it was due
+    public long awaitFrames(int n) throws InterruptedException {
+        long start, target;
+        long timeout = n * frameInterval + STALL_TIMEOUT;
+        long deadline = System.nanoTime() + timeout;
+        synchronized (lock) {
+            if (waiting++ == 0) {
+                lastFrameTime = 0;
+                handler.post(requestFrame);
+            }
+            try {
+                firstFrameTime = 0;
+                start  = frames;
+                target = start + n;
+                while (frames < target && timeout > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, timeout);
+                    timeout = deadline - System.nanoTime();
+                }
+                return frames - start;
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    // vsync timestamp, on the System.nanoTime clock, of the first frame counted by the last
+    // call to awaitFrames. Meant for the thread that made that call
+    public long firstFrameTime() {
+        synchronized (lock) {
+            return firstFrameTime;
+        }
+    }
+
+    private void requestFrame() {
+        synchronized (lock) {
+            if (!posted && waiting > 0) {
+                posted = true;
+                choreographer.postFrameCallback(this);
+            }
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (lock) {
+            // a late callback stands for every vsync since the last one
+            long n = lastFrameTime == 0 ? 1 :
+                    Math.max(1, Math.round((double) (frameTimeNanos - lastFrameTime) / frameInterval));
+            if (firstFrameTime == 0) firstFrameTime = frameTimeNanos - (n - 1) * frameInterval;
+            frames += n;
+            lastFrameTime = frameTimeNanos;
+            lock.notifyAll();
+            posted = waiting > 0;
+            if (posted) choreographer.postFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.optocom.imarinfr.opi;
+
+// full-threshold 4-2 staircase: steps of 4 dB until the first response reversal, then
+// steps of 2 dB until the second. The threshold is the last level seen
+public class FullThreshold implements Procedure {
+    public static final float MIN_DB = 0;
+    public static final float MAX_DB = 40;
+    public static final float NOT_SEEN = -1; // threshold reported if 0 dB was not seen
+
+    private final float start; // starting level in dB
+
+    private float[] level = new float[0];
+    private float[] step = new float[0];
+    private float[] lastSeen = new float[0];
+    private int[] lastResponse = new int[0]; // -1 none, 0 not seen, 1 seen
+    private int[] reversals = new int[0];
+    private int[] count = new int[0];
+    private boolean[] done = new boolean[0];
+
+    public FullThreshold(float start) {
+        this.start = start;
+    }
+
+    public boolean isValid() {
+        return start >= MIN_DB && start <= MAX_DB;
+    }
+
+    @Override
+    public void reset(int locations) {
+        if(level.length != locations) {
+            level        = new float[locations];
+            step         = new float[locations];
+            lastSeen     = new float[locations];
+            lastResponse = new int[locations];
+            reversals    = new int[locations];
+            count        = new int[locations];
+            done         = new boolean[locations];
+        }
+        for(int loc = 0; loc < locations; loc++) {
+            level[loc]        = start;
+            step[loc]         = 4;
+            lastSeen[loc]     = NOT_SEEN;
+            lastResponse[loc] = -1;
+            reversals[loc]    = 0;
+            count[loc]        = 0;
+            done[loc]         = false;
+        }
+    }
+
+    @Override
+    public float next(int loc) {
+        return level[loc];
+    }
+
+    @Override
+    public void update(int loc, float db, boolean seen) {
+        int response = seen ? 1 : 0;
+        count[loc]++;
+        if(seen) lastSeen[loc] = db;
+        if(lastResponse[loc] >= 0 && response != lastResponse[loc]) {
+            reversals[loc]++;
+            step[loc] = 2;
+        }
+        lastResponse[loc] = response;
+        // dimmer after a seen stimulus, brighter after a missed one
+        level[loc] = db + (seen ? step[loc] : -step[loc]);
+        if(reversals[loc] >= 2) done[loc] = true;
+        // out of range: seen at the dimmest level or missed at the brightest
+        else if(level[loc] > MAX_DB) {
+            if(seen && db >= MAX_DB) done[loc] = true;
+            level[loc] = MAX_DB;
+        } else if(level[loc] < MIN_DB) {
+            if(!seen && db <= MIN_DB) done[loc] = true;
+            level[loc] = MIN_DB;
+        }
+    }
+
+    @Override
+    public boolean finished(int loc) {
+        return done[loc];
+    }
+
+    @Override
+    public float threshold(int loc) {
+        return lastSeen[loc];
+    }
+
+    @Override
+    public int presentations(int loc) {
+        return count[loc];
+    }
+}
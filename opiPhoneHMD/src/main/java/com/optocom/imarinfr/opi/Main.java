@@ -13,6 +13,7 @@ import android.opengl.GLSurfaceView;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.Settings;
+import android.view.InputEvent;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.MenuInflater;
@@ -23,10 +24,13 @@ import android.widget.PopupMenu;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.util.concurrent.TimeUnit;
+
 public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClickListener {
     static {
         System.loadLibrary("cardboard_jni");
@@ -40,6 +44,7 @@ public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClick
     private Renderer renderer;
     private ToneGenerator toneGenerator;
     private boolean activePress = false;
+    private boolean touchClick = false; // a touch is being passed on as a click
 
     private static final int PERMISSIONS_REQUEST_CODE = 2;
 
@@ -55,13 +60,18 @@ public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClick
         glView.setEGLConfigChooser(8, 8, 8, 8, 16, 8);
         glView.setEGLContextClientVersion(3);
         // Set up connections to OPI R, renderer, and controller
-        renderer = new Renderer(nativeApp, glView);
+        renderer = new Renderer(nativeApp, glView,
+                new FrameScheduler(getWindowManager().getDefaultDisplay().getRefreshRate()));
         glView.setRenderer(renderer);
         glView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         glView.setFocusable(true); // TODO: see if we can get the volume up and down
         glView.setOnTouchListener(this::onTouch);
         //glView.setOnKeyListener(this);  // TODO: see if we can get the volume up and down
-        glView.setOnClickListener(v->renderer.onTriggerEvent());
+        // clicks that do not come from a touch, e.g. through accessibility services.
+        // Touches are handled in onTouch, with the time they happened
+        glView.setOnClickListener(v->{
+            if(!touchClick) renderer.onTriggerEvent(System.nanoTime());
+        });
         //TODO: performance issues?
 
         toneGenerator = new ToneGenerator(AudioManager.STREAM_SYSTEM,80);
@@ -113,6 +123,11 @@ public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClick
                 sensorListener.getSensor(), SensorManager.SENSOR_DELAY_NORMAL);
     }
 
+    @VisibleForTesting
+    Renderer getRenderer() {
+        return renderer;
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -146,10 +161,23 @@ public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClick
         return false;
     }
 
-    // Callback for when a key is touched
+    // Event times are on the uptime clock, which is the monotonic clock behind
+    // System.nanoTime, so the response is timed from when the input happened rather
+    // than from when it was delivered. In ns from Android 14, truncated to ms before
+    private static long eventTimeNanos(InputEvent event) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+            return event.getEventTimeNanos();
+        return TimeUnit.MILLISECONDS.toNanos(event.getEventTime());
+    }
+
+    // Callback for when a key is touched. The click it is passed on as, for
+    // accessibility, is not a second response
     public boolean onTouch(View v, MotionEvent event) {
         if(event.getAction() == MotionEvent.ACTION_DOWN) {
+            renderer.onTriggerEvent(eventTimeNanos(event));
+            touchClick = true;
             v.performClick();
+            touchClick = false;
             return true;
         } else return false;
     }
@@ -161,7 +189,7 @@ public class Main extends AppCompatActivity implements PopupMenu.OnMenuItemClick
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if(keyCode==KeyEvent.KEYCODE_VOLUME_UP) {
             if(!activePress) {
-                renderer.onTriggerEvent();
+                renderer.onTriggerEvent(eventTimeNanos(event));
                 toneGenerator.startTone(ToneGenerator.TONE_CDMA_SOFT_ERROR_LITE,50);
                 activePress = true;
             }
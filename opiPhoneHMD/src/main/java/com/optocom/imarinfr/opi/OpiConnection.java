@@ -6,37 +6,107 @@ import android.net.NetworkCapabilities;
 import android.os.Build;
 import android.util.DisplayMetrics;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Locale;
 
 import androidx.annotation.RequiresApi;
 
-public class OpiConnection extends Thread {
+public class OpiConnection extends Thread implements StimulusQueue.Listener,
+        ThresholdEngine.Listener {
     private static final int LOCALPORT = 50008;
+    private static final int POOL_SIZE = 16;  // stimuli allocated up front
+    private static final int POOL_STEPS = 8;  // steps each of them can hold before growing
 
     private static final String OPI_GET_METRICS      = "OPI_GET_METRICS";
     public  static final String OPI_SET_BACKGROUND   = "OPI_SET_BACKGROUND";
     public  static final String OPI_PRESENT          = "OPI_PRESENT";
+    private static final String OPI_PRESENT_INLINE   = "OPI_PRESENT_INLINE";
+    private static final String OPI_LOAD_PLAN        = "OPI_LOAD_PLAN";
+    private static final String OPI_PRESENT_INDEXED  = "OPI_PRESENT_INDEXED";
+    private static final String OPI_QUEUE            = "OPI_QUEUE";
+    private static final String OPI_QUEUE_CLEAR      = "OPI_QUEUE_CLEAR";
+    private static final String OPI_SET_ISI          = "OPI_SET_ISI";
+    private static final String OPI_RUN_TEST         = "OPI_RUN_TEST";
+    private static final String OPI_STOP_TEST        = "OPI_STOP_TEST";
+    private static final String OPI_SET_CALIBRATION  = "OPI_SET_CALIBRATION";
+    private static final String OPI_RESULT           = "OPI_RESULT";
+    private static final String OPI_PROGRESS         = "OPI_PROGRESS";
+    private static final String OPI_THRESHOLD        = "OPI_THRESHOLD";
+    private static final String OPI_TEST_DONE        = "OPI_TEST_DONE";
+    private static final String ZEST                 = "zest";
+    private static final String FULL_THRESHOLD       = "fullthreshold";
+    private static final String EXTENDED             = "extended";
+    private static final String OPI_ERROR            = "OPI_ERROR";
     private static final String OPI_CLOSE            = "OPI_CLOSE";
+    private static final String OPI_BINARY           = "OPI_BINARY";
     private static final String OK                   = "OK";
 
+    // binary protocol: every frame starts with a little-endian header. Requests carry
+    // opcode and payload length, responses carry opcode, status and payload length
+    private static final int BIN_GET_METRICS    = 1;
+    private static final int BIN_SET_BACKGROUND = 2;
+    private static final int BIN_PRESENT        = 3;
+    private static final int BIN_CLOSE          = 4;
+    private static final int BIN_QUEUE          = 5;
+    private static final int BIN_QUEUE_CLEAR    = 6;
+    private static final int BIN_SET_ISI        = 7;
+    private static final int BIN_LOAD_PLAN      = 8;
+    private static final int BIN_PRESENT_INDEXED = 9;
+    private static final int BIN_RUN_TEST       = 10;
+    private static final int BIN_STOP_TEST      = 11;
+    private static final int BIN_PROGRESS       = 12;
+    private static final int BIN_THRESHOLD      = 13;
+    private static final int BIN_TEST_DONE      = 14;
+    private static final int BIN_SET_CALIBRATION = 15;
+    private static final int BIN_ZEST           = 0;
+    private static final int BIN_FULL_THRESHOLD = 1;
+    private static final int BIN_OK             = 0;
+    private static final int BIN_ERROR          = 1;
+    private static final int BIN_REQUEST_HEADER  = 8;
+    private static final int BIN_RESPONSE_HEADER = 12;
+    private static final int BIN_MAX_PAYLOAD     = 1 << 20;
+
     private final Context context;
     private final long nativeApp;
     private final Renderer renderer;
     private final SensorListener sensorListener;
+    private final StimulusPool pool;
+    private final StimulusQueue queue;
+    private TestPlan plan;
+    private ThresholdEngine engine;
+
+    private InputStream in;
+    private volatile OutputStream out;
+    private volatile boolean binary;
 
-    private BufferedReader in;
-    private BufferedWriter out;
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder reply = new StringBuilder(); // text reply being served
+    private final byte[] header = new byte[BIN_RESPONSE_HEADER];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer request = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer response = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    // queued results are written from the queue thread, so writes to the client
+    // are serialised on this lock, with the buffers the queue thread owns
+    private final Object writeLock = new Object();
+    private final byte[] resultHeader = new byte[BIN_RESPONSE_HEADER];
+    private final ByteBuffer resultHeaderBuffer = ByteBuffer.wrap(resultHeader).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer result = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
 
     public OpiConnection(Context mainContext, long mainNativeApp, Renderer mainRenderer,
                          SensorListener mainSensorListener) {
@@ -44,6 +114,10 @@ public class OpiConnection extends Thread {
         nativeApp      = mainNativeApp;
         renderer       = mainRenderer;
         sensorListener = mainSensorListener;
+        pool           = new StimulusPool(POOL_SIZE, POOL_STEPS);
+        queue          = new StimulusQueue(renderer, pool);
+        queue.setListener(this);
+        applyCalibration(Calibration.load(context));
 
         start();
     }
@@ -51,36 +125,73 @@ public class OpiConnection extends Thread {
     @RequiresApi(api = Build.VERSION_CODES.R)
     @Override
     public void run() {
-        String msg, cmd;    // strings for message received and command
-        String pars;        // string array for parameters passed with command, if any
-        boolean opiOpened = false;
+        ServerSocket server;
         try {
-            ServerSocket server = new ServerSocket(LOCALPORT, 1);
-            Socket client;
-            //noinspection InfiniteLoopStatement
-            do {
-                if (!opiOpened) {
-                    client = server.accept();
-                    in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                    out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
-                    opiOpened = true;
-                } else {
-                    msg = in.readLine(); // read message
-                    pars = "";
-                    // if no parameters are found
-                    if (!msg.contains(" ")) cmd = msg;
-                    else {
-                        cmd = msg.substring(0, msg.indexOf(" "));
-                        pars = msg.substring(msg.indexOf(" ") + 1); // get params, if any
-                    }
-                    if (cmd.equals(OPI_CLOSE)) { // close OPI connection
-                        opiClose();
-                        opiOpened = false;
-                    } else processCommand(cmd, pars.split(" ")); // perform command
-                }
-            } while (true);
+            server = new ServerSocket(LOCALPORT, 1);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        try {
+            while (!isInterrupted()) {
+                // the client socket is closed however the connection ends, and a broken
+                // connection only drops its client, so the next one can connect
+                try (Socket client = server.accept()) {
+                    client.setTcpNoDelay(true);
+                    in = new BufferedInputStream(client.getInputStream());
+                    out = new BufferedOutputStream(client.getOutputStream());
+                    binary = false;
+                    serveClient();
+                } catch (IOException e) { // client went away mid frame or the connection broke
+                    e.printStackTrace();
+                    queue.clear();
+                    if (server.isClosed()) return; // the server socket itself is gone
+                }
+            }
+        } finally {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // serve requests from the connected client until it closes the connection or goes away
+    @RequiresApi(api = Build.VERSION_CODES.R)
+    private void serveClient() throws IOException {
+        String msg, cmd;    // strings for message received and command
+        String pars;        // string array for parameters passed with command, if any
+        boolean opiOpened = true;
+        while (opiOpened) {
+            if (binary) {
+                opiOpened = processFrame();
+                continue;
+            }
+            msg = readLine(); // read message
+            if (msg == null) { // client went away without closing
+                queue.clear();
+                return;
+            }
+            pars = "";
+            // if no parameters are found
+            if (!msg.contains(" ")) cmd = msg;
+            else {
+                cmd = msg.substring(0, msg.indexOf(" "));
+                pars = msg.substring(msg.indexOf(" ") + 1); // get params, if any
+            }
+            reply.setLength(0);
+            if (cmd.equals(OPI_CLOSE)) { // close OPI connection
+                opiClose();
+                opiOpened = false;
+            } else if (cmd.equals(OPI_BINARY)) { // switch to binary framing
+                writeMsg(OK);
+                synchronized (writeLock) { // results that follow the reply are framed
+                    flushReply();
+                    binary = true;
+                }
+            } else processCommand(cmd, pars.split(" ")); // perform command
+            flushReply();
         }
     }
 
@@ -88,7 +199,7 @@ public class OpiConnection extends Thread {
     public void processCommand(String cmd, String[] pars) {
         switch(cmd) {
             case OPI_GET_METRICS:
-                opiGetMetrics();
+                opiGetMetrics(pars);
                 break;
             case OPI_SET_BACKGROUND:
                 opiSetBackground(pars);
@@ -96,11 +207,110 @@ public class OpiConnection extends Thread {
             case OPI_PRESENT:
                 opiPresent(pars);
                 break;
+            case OPI_PRESENT_INLINE:
+                opiPresentInline(pars);
+                break;
+            case OPI_LOAD_PLAN:
+                opiLoadPlan(pars);
+                break;
+            case OPI_PRESENT_INDEXED:
+                opiPresentIndexed(pars);
+                break;
+            case OPI_QUEUE:
+                opiQueue(pars);
+                break;
+            case OPI_QUEUE_CLEAR:
+                queue.clear();
+                writeMsg(OK);
+                break;
+            case OPI_SET_ISI:
+                opiSetIsi(pars);
+                break;
+            case OPI_RUN_TEST:
+                opiRunTest(pars);
+                break;
+            case OPI_STOP_TEST:
+                stopTest();
+                writeMsg(OK);
+                break;
+            case OPI_SET_CALIBRATION:
+                opiSetCalibration(pars);
+                break;
             default:
                 break;
         }
     }
 
+    // read and serve one binary frame. Returns false when the connection is to be closed
+    @RequiresApi(api = Build.VERSION_CODES.R)
+    private boolean processFrame() throws IOException {
+        int opcode, length;
+        try {
+            readFully(header, BIN_REQUEST_HEADER);
+        } catch (EOFException e) { // client went away without closing
+            queue.clear();
+            return false;
+        }
+        opcode = headerBuffer.getInt(0);
+        length = headerBuffer.getInt(4);
+        if (length < 0 || length > BIN_MAX_PAYLOAD) {
+            sendError(opcode, "OPI server: Invalid frame length");
+            return false; // framing is lost, so drop the client
+        }
+        if (request.capacity() < length)
+            request = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(request.array(), length);
+        request.clear();
+        request.limit(length);
+        switch (opcode) {
+            case BIN_GET_METRICS:
+                binGetMetrics();
+                break;
+            case BIN_SET_BACKGROUND:
+                binSetBackground();
+                break;
+            case BIN_PRESENT:
+                binPresent();
+                break;
+            case BIN_LOAD_PLAN:
+                binLoadPlan();
+                break;
+            case BIN_PRESENT_INDEXED:
+                binPresentIndexed();
+                break;
+            case BIN_QUEUE:
+                binQueue();
+                break;
+            case BIN_QUEUE_CLEAR:
+                queue.clear();
+                sendOk(opcode);
+                break;
+            case BIN_SET_ISI:
+                if(request.remaining() == 4 && queue.setIsi(request.getInt())) sendOk(opcode);
+                else sendError(opcode, "OPI server: Inter-stimulus interval is not valid");
+                break;
+            case BIN_RUN_TEST:
+                binRunTest();
+                break;
+            case BIN_STOP_TEST:
+                stopTest();
+                sendOk(opcode);
+                break;
+            case BIN_SET_CALIBRATION:
+                binSetCalibration();
+                break;
+            case BIN_CLOSE:
+                stopTest();
+                queue.clear();
+                renderer.changeBackground(new Background());
+                sendOk(opcode);
+                return false;
+            default:
+                sendError(opcode, "OPI server: Unknown opcode");
+        }
+        return true;
+    }
+
     public String socketAddress() {
         if(getIPAddress() != null)
             return getIPAddress() + ":" + LOCALPORT;
@@ -130,8 +340,7 @@ public class OpiConnection extends Thread {
     }
 
     @RequiresApi(api = Build.VERSION_CODES.R)
-    public void opiGetMetrics() {
-        // TODO find min and max luminance of the phone and report back to R OPI
+    public void opiGetMetrics(String[] pars) {
         DisplayMetrics displayMetrics = new DisplayMetrics();
         context.getDisplay().getRealMetrics(displayMetrics);
         writeMsg(String.valueOf(displayMetrics.widthPixels)); // send phone metrics
@@ -144,9 +353,18 @@ public class OpiConnection extends Thread {
         writeMsg(String.valueOf(fov[2]));
         writeMsg(String.valueOf(fov[3]));
         writeMsg(Float.toString(sensorListener.getLight()));
+        // further lines only on request, so that existing clients are unaffected
+        if(pars.length > 0 && pars[0].equals(EXTENDED)) {
+            Calibration calibration = Calibration.current();
+            writeMsg(String.valueOf(nativeGetLuminanceLevels(nativeApp)));
+            writeMsg(String.valueOf(calibration.min()));
+            writeMsg(String.valueOf(calibration.max()));
+        }
     }
 
     private void opiClose() {
+        stopTest();
+        queue.clear();
         renderer.changeBackground(new Background());
         writeMsg(OK);
     }
@@ -160,11 +378,10 @@ public class OpiConnection extends Thread {
     }
 
     public void opiPresent(String[] pars) {
-        long time;
-        String seen;
+        String msg;
         String errorMsg = "";
         // parse global parameters
-        Stimulus stim = new Stimulus();
+        Stimulus stim = pool.acquire();
         boolean correct = stim.parseGlobalPars(pars);
         if(correct) {
             // if correct, inform client, then proceed
@@ -172,7 +389,9 @@ public class OpiConnection extends Thread {
             writeMsg(OK);
             for(int step = 0; step < stim.steps(); step++) {
                 try {
-                    correct = stim.parseStepPars(step, in.readLine().split(" "));
+                    flushReply(); // client waits for the acknowledgement
+                    msg = readLine();
+                    correct = msg != null && stim.parseStepPars(step, msg.split(" "));
                 } catch (IOException e) {
                     correct = false;
                 }
@@ -180,15 +399,255 @@ public class OpiConnection extends Thread {
                 else break;
             }
             // if still correct, inform client, then present
-            if(correct) {
-                renderer.presentStimulus(stim);
-                time = renderer.responseTime();
-                if(time > 0) seen  = "true";
-                else         seen  = "false";
-                sendResults("", seen, Long.toString(time));
-            } else errorMsg = "OPI server: Step parameters are not valid";
+            if(correct) present(stim);
+            else errorMsg = "OPI server: Step parameters are not valid";
         } else errorMsg = "OPI server: Global stimulus parameters are not valid";
         if(!correct) writeMsg(errorMsg);
+        pool.release(stim);
+    }
+
+    // same as opiPresent, but global and step parameters come in one message and
+    // are acknowledged only by the results
+    public void opiPresentInline(String[] pars) {
+        Stimulus stim = pool.acquire();
+        if(stim.parseInlinePars(pars)) present(stim);
+        else writeMsg("OPI server: Stimulus parameters are not valid");
+        pool.release(stim);
+    }
+
+    public void opiLoadPlan(String[] pars) {
+        TestPlan newPlan = new TestPlan();
+        if(newPlan.parseParameters(pars)) {
+            plan = newPlan;
+            writeMsg(OK);
+        } else writeMsg("OPI server: Test plan is not valid");
+    }
+
+    // presents template index of the loaded test plan at the given luminance
+    public void opiPresentIndexed(String[] pars) {
+        int index;
+        float lum;
+        Stimulus stim;
+        try {
+            index = Integer.parseInt(pars[0]);
+            lum   = Float.parseFloat(pars[1]);
+        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            writeMsg("OPI server: Template index or luminance are not valid");
+            return;
+        }
+        if(plan == null) {
+            writeMsg("OPI server: No test plan loaded");
+            return;
+        }
+        stim = pool.acquire();
+        if(pars.length == 2 && plan.fill(index, lum, stim)) present(stim);
+        else writeMsg("OPI server: Template index or luminance are not valid");
+        pool.release(stim);
+    }
+
+    // queues a stimulus given as a trial id followed by the OPI_PRESENT_INLINE parameters.
+    // Nothing is sent back until the trial completes, errors are tagged with the trial id
+    public void opiQueue(String[] pars) {
+        int id;
+        Stimulus stim;
+        try {
+            id = Integer.parseInt(pars[0]);
+        } catch(NumberFormatException e) {
+            writeMsg("OPI server: Trial id is not valid");
+            return;
+        }
+        stim = pool.acquire();
+        if(!stim.parseInlinePars(Arrays.copyOfRange(pars, 1, pars.length)))
+            writeMsg(OPI_ERROR + " " + id + " OPI server: Stimulus parameters are not valid");
+        else if(!queue.add(id, stim))
+            writeMsg(OPI_ERROR + " " + id + " OPI server: Queue is full");
+        else return;
+        pool.release(stim);
+    }
+
+    public void opiSetIsi(String[] pars) {
+        boolean done;
+        try {
+            done = pars.length == 1 && queue.setIsi(Long.parseLong(pars[0]));
+        } catch(NumberFormatException e) {
+            done = false;
+        }
+        if(done) writeMsg(OK);
+        else writeMsg("OPI server: Inter-stimulus interval is not valid");
+    }
+
+    // luminance measured at evenly spaced output levels from 0 to 1, after the number
+    // of levels. From then on, luminances are in the units of the table, e.g. cd/m2
+    public void opiSetCalibration(String[] pars) {
+        Calibration calibration = Calibration.parseParameters(pars);
+        if(calibration == null) {
+            writeMsg("OPI server: Calibration table is not valid");
+            return;
+        }
+        calibration.save(context);
+        applyCalibration(calibration);
+        writeMsg(OK);
+    }
+
+    private void applyCalibration(Calibration calibration) {
+        Calibration.setCurrent(calibration);
+        renderer.setCalibration(calibration);
+    }
+
+    // runs a threshold test over the loaded test plan on the phone. Parameters are the
+    // procedure, zest or fullthreshold, followed by its settings: prior mean, prior sd,
+    // stopping sd and maximum number of presentations for zest, starting level for
+    // fullthreshold, all in dB. Progress and thresholds are streamed while it runs
+    public void opiRunTest(String[] pars) {
+        Procedure procedure = null;
+        try {
+            if(pars[0].equals(ZEST) && pars.length == 5)
+                procedure = zest(Float.parseFloat(pars[1]), Float.parseFloat(pars[2]),
+                                 Float.parseFloat(pars[3]), Integer.parseInt(pars[4]));
+            else if(pars[0].equals(FULL_THRESHOLD) && pars.length == 2)
+                procedure = fullThreshold(Float.parseFloat(pars[1]));
+        } catch(NumberFormatException e) {
+            procedure = null;
+        }
+        writeMsg(runTest(procedure));
+    }
+
+    private void binRunTest() throws IOException {
+        Procedure procedure = null;
+        int type = request.remaining() >= 4 ? request.getInt() : -1;
+        if(type == BIN_ZEST && request.remaining() == 16)
+            procedure = zest(request.getFloat(), request.getFloat(), request.getFloat(),
+                             request.getInt());
+        else if(type == BIN_FULL_THRESHOLD && request.remaining() == 4)
+            procedure = fullThreshold(request.getFloat());
+        String msg = runTest(procedure);
+        if(msg.equals(OK)) sendOk(BIN_RUN_TEST);
+        else sendError(BIN_RUN_TEST, msg);
+    }
+
+    private Procedure zest(float priorMean, float priorSd, float stopSd, int maxPresentations) {
+        Zest zest = new Zest(priorMean, priorSd, stopSd, maxPresentations);
+        return zest.isValid() ? zest : null;
+    }
+
+    private Procedure fullThreshold(float start) {
+        FullThreshold fullThreshold = new FullThreshold(start);
+        return fullThreshold.isValid() ? fullThreshold : null;
+    }
+
+    private String runTest(Procedure procedure) {
+        if(procedure == null) return "OPI server: Test procedure is not valid";
+        if(plan == null) return "OPI server: No test plan loaded";
+        if(engine != null && engine.isAlive()) return "OPI server: A test is already running";
+        engine = new ThresholdEngine(renderer, plan, procedure, this);
+        engine.start();
+        return OK;
+    }
+
+    private void stopTest() {
+        if(engine != null) engine.stopTest();
+    }
+
+    // called from the queue thread when a queued trial completes
+    @Override
+    public void onResult(int id, long time, long frames) {
+        synchronized (writeLock) {
+            if (binary) {
+                result.clear();
+                result.putInt(id);
+                result.putInt(time > 0 ? 1 : 0);
+                result.putFloat(time / 1e6f);
+                result.putInt((int) frames);
+                sendResult(BIN_QUEUE);
+            } else sendResult(OPI_RESULT + " " + id + " " + (time > 0) + " " + millis(time) + " " + frames);
+        }
+    }
+
+    // the following are called from the test thread. If the client is gone the test
+    // goes on, and all thresholds are sent again when it is done
+    @Override
+    public void onProgress(int loc, float db, long time) {
+        synchronized (writeLock) {
+            if (binary) {
+                result.clear();
+                result.putInt(loc);
+                result.putFloat(db);
+                result.putInt(time > 0 ? 1 : 0);
+                result.putFloat(time / 1e6f);
+                sendResult(BIN_PROGRESS);
+            } else sendResult(OPI_PROGRESS + " " + loc + " " + db + " " + (time > 0) + " " + millis(time));
+        }
+    }
+
+    @Override
+    public void onThreshold(int loc, float db, int presentations) {
+        synchronized (writeLock) {
+            if (binary) {
+                result.clear();
+                result.putInt(loc);
+                result.putFloat(db);
+                result.putInt(presentations);
+                sendResult(BIN_THRESHOLD);
+            } else sendResult(OPI_THRESHOLD + " " + loc + " " + db + " " + presentations);
+        }
+    }
+
+    @Override
+    public void onTestDone(boolean completed, Procedure procedure, int locations) {
+        synchronized (writeLock) {
+            if (binary) {
+                if (result.capacity() < 4 * (locations + 2))
+                    result = ByteBuffer.allocate(4 * (locations + 2)).order(ByteOrder.LITTLE_ENDIAN);
+                result.clear();
+                result.putInt(completed ? 1 : 0);
+                result.putInt(locations);
+                for (int loc = 0; loc < locations; loc++) result.putFloat(procedure.threshold(loc));
+                sendResult(BIN_TEST_DONE);
+            } else {
+                StringBuilder msg = new StringBuilder(OPI_TEST_DONE);
+                msg.append(completed ? " completed" : " stopped");
+                for (int loc = 0; loc < locations; loc++) msg.append(' ').append(procedure.threshold(loc));
+                sendResult(msg.toString());
+            }
+        }
+    }
+
+    // asynchronous messages, sent holding writeLock
+    private void sendResult(String txt) {
+        try {
+            out.write(txt.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendResult(int opcode) {
+        try {
+            resultHeaderBuffer.putInt(0, opcode);
+            resultHeaderBuffer.putInt(4, BIN_OK);
+            resultHeaderBuffer.putInt(8, result.position());
+            out.write(resultHeader, 0, BIN_RESPONSE_HEADER);
+            out.write(result.array(), 0, result.position());
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void present(Stimulus stim) {
+        long time;
+        String seen;
+        time = renderer.presentStimulus(stim);
+        if(time > 0) seen  = "true";
+        else         seen  = "false";
+        sendResults("", seen, millis(time));
+    }
+
+    // response times are measured in ns and reported in ms with sub-millisecond precision
+    private static String millis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
     }
 
     public void sendResults(String err, String seen, String time){
@@ -197,15 +656,161 @@ public class OpiConnection extends Thread {
         writeMsg(time);
     }
 
-    private void writeMsg(String txt) {
-        try {
-            out.write(txt);
-            out.newLine();
+    @RequiresApi(api = Build.VERSION_CODES.R)
+    private void binGetMetrics() throws IOException {
+        DisplayMetrics displayMetrics = new DisplayMetrics();
+        context.getDisplay().getRealMetrics(displayMetrics);
+        float[] fov = nativeGetFieldOfView(nativeApp);
+        response.clear();
+        response.putInt(displayMetrics.widthPixels);
+        response.putInt(displayMetrics.heightPixels);
+        response.putFloat(displayMetrics.xdpi);
+        response.putFloat(displayMetrics.ydpi);
+        response.putFloat(fov[0]);
+        response.putFloat(fov[1]);
+        response.putFloat(fov[2]);
+        response.putFloat(fov[3]);
+        response.putFloat(sensorListener.getLight());
+        response.putInt(nativeGetLuminanceLevels(nativeApp));
+        response.putFloat(Calibration.current().min());
+        response.putFloat(Calibration.current().max());
+        sendFrame(BIN_GET_METRICS, BIN_OK, response);
+    }
+
+    private void binSetCalibration() throws IOException {
+        Calibration calibration = Calibration.parseParameters(request);
+        if(calibration == null) {
+            sendError(BIN_SET_CALIBRATION, "OPI server: Calibration table is not valid");
+            return;
+        }
+        calibration.save(context);
+        applyCalibration(calibration);
+        sendOk(BIN_SET_CALIBRATION);
+    }
+
+    private void binSetBackground() throws IOException {
+        Background bg = new Background();
+        if(bg.parseParameters(request)) {
+            renderer.changeBackground(bg);
+            sendOk(BIN_SET_BACKGROUND);
+        } else sendError(BIN_SET_BACKGROUND, "OPI server: Background parameters are not valid");
+    }
+
+    private void binPresent() throws IOException {
+        Stimulus stim = pool.acquire();
+        if(stim.parseParameters(request)) {
+            long time = renderer.presentStimulus(stim);
+            response.clear();
+            response.putInt(time > 0 ? 1 : 0);
+            response.putFloat(time / 1e6f);
+            response.putInt((int) stim.frames);
+            sendFrame(BIN_PRESENT, BIN_OK, response);
+        } else sendError(BIN_PRESENT, "OPI server: Stimulus parameters are not valid");
+        pool.release(stim);
+    }
+
+    private void binLoadPlan() throws IOException {
+        TestPlan newPlan = new TestPlan();
+        if(newPlan.parseParameters(request)) {
+            plan = newPlan;
+            sendOk(BIN_LOAD_PLAN);
+        } else sendError(BIN_LOAD_PLAN, "OPI server: Test plan is not valid");
+    }
+
+    private void binPresentIndexed() throws IOException {
+        Stimulus stim = pool.acquire();
+        if(plan == null) sendError(BIN_PRESENT_INDEXED, "OPI server: No test plan loaded");
+        else if(request.remaining() == 8 && plan.fill(request.getInt(), request.getFloat(), stim)) {
+            long time = renderer.presentStimulus(stim);
+            response.clear();
+            response.putInt(time > 0 ? 1 : 0);
+            response.putFloat(time / 1e6f);
+            response.putInt((int) stim.frames);
+            sendFrame(BIN_PRESENT_INDEXED, BIN_OK, response);
+        } else sendError(BIN_PRESENT_INDEXED, "OPI server: Template index or luminance are not valid");
+        pool.release(stim);
+    }
+
+    // payload is the trial id followed by the PRESENT payload. Results are sent when the
+    // trial completes, with the trial id, seen and response time
+    private void binQueue() throws IOException {
+        String msg;
+        Stimulus stim = pool.acquire();
+        int id = request.remaining() >= 4 ? request.getInt() : -1;
+        if(id < 0 || !stim.parseParameters(request)) msg = "OPI server: Stimulus parameters are not valid";
+        else if(!queue.add(id, stim)) msg = "OPI server: Queue is full";
+        else return;
+        pool.release(stim);
+        response.clear();
+        response.putInt(id);
+        response.put(msg.getBytes(StandardCharsets.UTF_8));
+        sendFrame(BIN_QUEUE, BIN_ERROR, response);
+    }
+
+    private void sendOk(int opcode) throws IOException {
+        response.clear();
+        sendFrame(opcode, BIN_OK, response);
+    }
+
+    private void sendError(int opcode, String error) throws IOException {
+        response.clear();
+        response.put(error.getBytes(StandardCharsets.UTF_8));
+        sendFrame(opcode, BIN_ERROR, response);
+    }
+
+    // writes header and the payload accumulated in buf, then flushes once
+    private void sendFrame(int opcode, int status, ByteBuffer buf) throws IOException {
+        synchronized (writeLock) {
+            headerBuffer.putInt(0, opcode);
+            headerBuffer.putInt(4, status);
+            headerBuffer.putInt(8, buf.position());
+            out.write(header, 0, BIN_RESPONSE_HEADER);
+            out.write(buf.array(), 0, buf.position());
             out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
+    private void readFully(byte[] buf, int length) throws IOException {
+        int n, read = 0;
+        while (read < length) {
+            n = in.read(buf, read, length - read);
+            if (n < 0) throw new EOFException();
+            read += n;
+        }
+    }
+
+    // reads an ASCII line terminated by \n (or \r\n). Returns null at end of stream
+    private String readLine() throws IOException {
+        int c;
+        line.setLength(0);
+        while ((c = in.read()) != '\n') {
+            if (c < 0) return line.length() > 0 ? line.toString() : null;
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    // replies are gathered while the command is served, which may block on the client
+    // or on a presentation, and written in one go by flushReply
+    private void writeMsg(String txt) {
+        reply.append(txt).append('\n');
+    }
+
+    // writeLock is only held to write, so queued results and test progress are not
+    // held back by a command being served, and never land inside a multi-line reply
+    private void flushReply() {
+        if (reply.length() == 0) return;
+        synchronized (writeLock) {
+            try {
+                out.write(reply.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        reply.setLength(0);
+    }
+
     private native float[] nativeGetFieldOfView(long nativeApp);
+    private native int nativeGetLuminanceLevels(long nativeApp);
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package com.optocom.imarinfr.opi;
+
+// threshold procedure run on the phone for each location of a test plan. Levels are in dB
+// of attenuation from the maximum luminance. Implementations keep all state in arrays
+// allocated by reset, so a running test does not allocate
+public interface Procedure {
+    // prepares the procedure for a test with the given number of locations
+    void reset(int locations);
+
+    // level in dB of the next presentation at a location
+    float next(int loc);
+
+    // updates a location with the response to a presentation at level db
+    void update(int loc, float db, boolean seen);
+
+    boolean finished(int loc);
+
+    // threshold in dB estimated at a location so far
+    float threshold(int loc);
+
+    // number of presentations made at a location
+    int presentations(int loc);
+}
@@ -2,6 +2,12 @@ package com.optocom.imarinfr.opi;
 
 import android.opengl.GLSurfaceView;
 
+import androidx.annotation.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -9,23 +15,56 @@ public class Renderer implements GLSurfaceView.Renderer {
 
     private final long nativeApp;
     private final GLSurfaceView glView;
+    private final FrameScheduler scheduler;
+    // draw parameters shared with native code, laid out as FrameParams in opi_app.h.
+    // Written and read on the GL thread only
+    private static final int FRAME_BYTES = 34 * 4;
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_BYTES).order(ByteOrder.nativeOrder());
+    private final Object drawLock = new Object();
+    private long draws = 0; // frames drawn so far, guarded by drawLock
+
+    // a single long-lived worker renders the steps of every presentation. Signalled
+    // with a plain monitor, which unlike j.u.c. locks does not allocate when blocking
+    private final Object trialLock = new Object();
+    private boolean trialPending = false; // guarded by trialLock
+    private boolean trialDone = false;    // guarded by trialLock
 
-    private Background bg = new Background();
-    private Stimulus stim = new Stimulus();
-    private int step = 0;
+    // what the GL thread draws, published by the socket and presenter threads
+    private final Scene scene = new Scene();
+    // owned by the presenter thread once handed over through trialLock
+    private Stimulus stim;
+    private Scene.Step[] steps;
+    // step snapshots are written into one of two fixed sets, taking turns per trial, so a
+    // trial allocates nothing. A set is only written again once the GL thread has drawn a
+    // frame since the end of the trial that last showed it, so it is never read meanwhile
+    private static final int SET_STEPS = 8; // steps each set holds before growing
+    private final Scene.Step[][] stepSets = new Scene.Step[2][];
+    private final long[] setShown = {-1, -1}; // frames drawn when each set was last shown
+    private int stepSet = 0;
 
+    private static final long MIN_RESPONSE_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // response state is shared with the UI thread, guarded by responseLock
+    private final Object responseLock = new Object();
     private boolean canClick = false;
-    private boolean clicked = false;
-    private long startTime = 0;
-    private long timeSinceOnset = 0;
-    private long responseTime = 0;
-    public Renderer(long mainNativeApp, GLSurfaceView mainGlView) {
+    private volatile boolean clicked = false;
+    private volatile long startTime = 0; // presentation start on the monotonic clock in ns
+    private volatile long onsetTime = 0; // vsync at which the stimulus was first shown in ns
+    private long responseTime = 0;       // in ns
+    public Renderer(long mainNativeApp, GLSurfaceView mainGlView, FrameScheduler mainScheduler) {
         nativeApp = mainNativeApp;
         glView = mainGlView;
+        scheduler = mainScheduler;
+        for(int set = 0; set < stepSets.length; set++) stepSets[set] = newSteps(SET_STEPS);
+        Thread presenter = new Thread(this::presentLoop, "Presenter");
+        presenter.setPriority(Thread.MAX_PRIORITY);
+        presenter.setDaemon(true);
+        presenter.start();
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl10, EGLConfig eglConfig) {
+        nativeSetFrameBuffer(nativeApp, frame);
         nativeOnSurfaceCreated(nativeApp);
     }
 
@@ -37,86 +76,214 @@ public class Renderer implements GLSurfaceView.Renderer {
     @Override
     public void onDrawFrame(GL10 gl10) {
         // draw frame
-        nativeOnDrawFrame(nativeApp, bg.bgeye, bg.bglum, bg.bgcol, bg.fixeye, bg.fixtype,
-                bg.fixcx, bg.fixcy, bg.fixsx, bg.fixsy, bg.fixtheta, bg.fixlum, bg.fixcol,
-                stim.eye[step], stim.type[step], stim.cx[step], stim.cy[step], stim.sx[step],
-                stim.sy[step], stim.theta[step], stim.lum[step], stim.col[step]);
+        writeFrame();
+        nativeOnDrawFrame(nativeApp);
+        synchronized (drawLock) {
+            draws++;
+            drawLock.notifyAll();
+        }
     }
 
+    private void writeFrame() {
+        Background bg = scene.bg;
+        Scene.Step st = scene.step;
+        frame.clear();
+        frame.putInt(bg.bgeye).putFloat(bg.bglum);
+        frame.putFloat(bg.bgcol[0]).putFloat(bg.bgcol[1]).putFloat(bg.bgcol[2]).putFloat(bg.bgcol[3]);
+        frame.putInt(bg.fixeye).putInt(bg.fixtype);
+        frame.putFloat(bg.fixcx).putFloat(bg.fixcy).putFloat(bg.fixsx).putFloat(bg.fixsy);
+        frame.putFloat(bg.fixtheta).putFloat(bg.fixlum);
+        frame.putFloat(bg.fixcol[0]).putFloat(bg.fixcol[1]).putFloat(bg.fixcol[2]).putFloat(bg.fixcol[3]);
+        frame.putInt(st.eye).putInt(st.type);
+        frame.putFloat(st.cx).putFloat(st.cy).putFloat(st.sx).putFloat(st.sy);
+        frame.putFloat(st.theta).putFloat(st.lum);
+        frame.putFloat(st.col[0]).putFloat(st.col[1]).putFloat(st.col[2]).putFloat(st.col[3]);
+        frame.putFloat(st.sf).putFloat(st.phase).putFloat(st.sigma).putFloat(st.contrast);
+    }
+
+    // the table is inverted in the fragment shader, on the GL thread
+    public void setCalibration(Calibration calibration) {
+        float[] table = calibration.table();
+        glView.queueEvent(() -> nativeSetCalibration(nativeApp, table));
+        glView.requestRender();
+    }
+
+    // newbg must not be modified afterwards
     public void changeBackground(Background newbg) {
-        bg = newbg;
+        scene.bg = newbg;
         glView.requestRender(); // update background
     }
 
-    public void presentStimulus(Stimulus newStim) {
-        long minResponseTime = 100;
+    @VisibleForTesting
+    Scene getScene() {
+        return scene;
+    }
+
+    private void showStep(Scene.Step step) {
+        scene.step = step;
+    }
+
+    private static Scene.Step[] newSteps(int n) {
+        Scene.Step[] set = new Scene.Step[n];
+        for(int i = 0; i < n; i++) set[i] = new Scene.Step();
+        return set;
+    }
+
+    // presentations from the socket and the queue threads are served one at a time.
+    // Returns the response time in ns from the frame that first showed the stimulus
+    // to the input event, or 0 if the stimulus was not seen
+    public synchronized long presentStimulus(Stimulus newStim) {
+        long now, deadline;
 
         stim = newStim;
-        long w = stim.w;
-        long d = stim.d;
-        canClick = false;
-        clicked = false;
-        timeSinceOnset = 0;
-        responseTime = 0;
+        // snapshot every step before onset, into the set the GL thread is done with
+        stepSet ^= 1;
+        try {
+            awaitDrawn(setShown[stepSet] + 1);
+        } catch (InterruptedException ignored) {
+        }
+        if(stepSets[stepSet].length < stim.nsteps) stepSets[stepSet] = newSteps(stim.nsteps);
+        steps = stepSets[stepSet];
+        for(int i = 0; i < stim.nsteps; i++) steps[i].set(stim, i);
+        long w = TimeUnit.MILLISECONDS.toNanos(stim.w);
+        long d = TimeUnit.MILLISECONDS.toNanos(stim.d);
+        stim.frames = 0;
+        synchronized (responseLock) {
+            canClick = false;
+            clicked = false;
+            responseTime = 0;
+        }
         // render stimulus and manage response
-        new Thread(this::renderStimulus).start();
-        startTime = System.currentTimeMillis();
-        // block until we can respond, then open response window
-        while(timeSinceOnset < minResponseTime)
-            timeSinceOnset = System.currentTimeMillis() - startTime;
-        canClick = true;
-        // keep the response window open until time allotted to
-        // respond expires
-        while(timeSinceOnset < w) {
-            timeSinceOnset = System.currentTimeMillis() - startTime;
-            // if minimum presentation time is over and there
-            // was a click, then exit loop
-             if(timeSinceOnset > d && clicked)
-                 break;
+        onsetTime = 0;
+        startTime = System.nanoTime();
+        synchronized (trialLock) {
+            trialDone = false;
+            trialPending = true;
+            trialLock.notifyAll();
+        }
+        try {
+            // block until we can respond, then open response window
+            TimeUnit.NANOSECONDS.sleep(MIN_RESPONSE_TIME);
+            synchronized (responseLock) {
+                canClick = true;
+                // keep the response window open until time allotted to respond
+                // expires, or until the minimum presentation time is over after
+                // a click. onTriggerEvent wakes us up as soon as there is one
+                while((now = System.nanoTime() - startTime) < w && !(clicked && now > d)) {
+                    deadline = clicked ? Math.min(d, w) : w;
+                    TimeUnit.NANOSECONDS.timedWait(responseLock, deadline - now + 1);
+                }
+                canClick = false;
+            }
+        } catch (InterruptedException e) {
+            synchronized (responseLock) {
+                canClick = false;
+            }
+        }
+        // the stimulus may go back to a pool once we return, so let the steps finish
+        synchronized (trialLock) {
+            while(!trialDone) {
+                try {
+                    trialLock.wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        synchronized (responseLock) {
+            return responseTime;
+        }
+    }
+
+    private void presentLoop() {
+        //noinspection InfiniteLoopStatement
+        while(true) {
+            synchronized (trialLock) {
+                while(!trialPending) {
+                    try {
+                        trialLock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                trialPending = false;
+            }
+            renderStimulus();
+            synchronized (trialLock) {
+                trialDone = true;
+                trialLock.notifyAll();
+            }
         }
-        canClick = false;
     }
 
+    // each step stays on screen for the whole number of frames closest to its duration,
+    // counted from vsync once the step has been drawn
     private void renderStimulus() {
-        long t0, dt;
         for(int i = 0; i < stim.nsteps; i++) {
-            step = i;
-            glView.requestRender(); // render stimulus
-            t0 = System.currentTimeMillis();
-            dt = 0;
-            while(dt < stim.tstep[step]) {
-                dt = System.currentTimeMillis() - t0;
+            showStep(steps[i]);
+            try {
+                awaitDraw();
+                stim.frames += scheduler.awaitFrames(scheduler.toFrames(stim.tstep[i]));
+                if(i == 0) onsetTime = scheduler.firstFrameTime();
+            } catch (InterruptedException e) {
+                break;
             }
             // if we got a valid response and minimum presentation
             // time is over, clean stimulus
-            if(clicked && System.currentTimeMillis() - startTime > stim.d)
+            if(clicked && System.nanoTime() - startTime > TimeUnit.MILLISECONDS.toNanos(stim.d))
                 break;
         }
         // if responded clean stimulus
-        stim = new Stimulus();
-        step = 0;
+        showStep(Scene.Step.BLANK);
+        synchronized (drawLock) {
+            setShown[stepSet] = draws;
+        }
         glView.requestRender();
     }
 
-    public void onTriggerEvent() {
-        // if can respond
-        if(canClick) {
-            responseTime = timeSinceOnset;
-            clicked = true;
-            canClick = false;
+    // requests a frame and blocks until the GL thread has drawn it, or gives up after
+    // a second if the view is not drawing, e.g. while paused
+    private void awaitDraw() throws InterruptedException {
+        long target;
+        synchronized (drawLock) {
+            target = draws + 1;
+            glView.requestRender();
+        }
+        awaitDrawn(target);
+    }
+
+    // blocks until the GL thread has drawn target frames in all, or gives up after a second
+    private void awaitDrawn(long target) throws InterruptedException {
+        long timeout = TimeUnit.SECONDS.toNanos(1);
+        long deadline = System.nanoTime() + timeout;
+        synchronized (drawLock) {
+            while (draws < target && timeout > 0) {
+                TimeUnit.NANOSECONDS.timedWait(drawLock, timeout);
+                timeout = deadline - System.nanoTime();
+            }
         }
     }
 
-    public long responseTime() {
-        return responseTime;
+    // eventTime is when the input happened on the System.nanoTime clock, e.g. from the
+    // event timestamp of the click or key press rather than from when it got here.
+    // Inputs that happened before the response window opened are ignored, even if
+    // they are delivered once it is open, and so are inputs before the onset
+    public void onTriggerEvent(long eventTime) {
+        synchronized (responseLock) {
+            // if can respond
+            if(!canClick || eventTime < startTime + MIN_RESPONSE_TIME) return;
+            // the first step may still be on screen, with its vsync not yet known
+            long onset = onsetTime != 0 ? onsetTime : scheduler.firstFrameTime();
+            if(onset == 0 || onset < startTime) onset = startTime;
+            if(eventTime <= onset) return;
+            responseTime = eventTime - onset;
+            clicked = true;
+            canClick = false;
+            responseLock.notifyAll(); // close the response window without delay
+        }
     }
 
     private native void nativeOnSurfaceCreated(long nativeApp);
     private native void nativeSetScreenParams(long nativeApp, int width, int height);
-    private native void nativeOnDrawFrame(long nativeApp, int bgeye, float bglum, float[] bgcol,
-                                          int fixeye, int fixtype, float fixcx, float fixcy,
-                                          float fixsx, float fixsy, float fixtheta, float fixlum,
-                                          float[] fixcol, int steye, int sttype, float cx,
-                                          float cy, float sx, float sy,float sttheta,
-                                          float stlum, float[] stcol);
+    private native void nativeSetFrameBuffer(long nativeApp, ByteBuffer frame);
+    private native void nativeOnDrawFrame(long nativeApp);
+    private native void nativeSetCalibration(long nativeApp, float[] table);
 }
@@ -0,0 +1,42 @@
+package com.optocom.imarinfr.opi;
+
+// what the GL thread has to draw: the background with its fixation target and the current
+// stimulus step. Each is published as a whole by a volatile write and is not modified while
+// it may be read, so the GL thread never sees a half-updated one
+public final class Scene {
+
+    // copy of one step of a stimulus. Written by the presenter before it is published, and
+    // only written again once the GL thread can no longer be reading it
+    public static final class Step {
+        public static final Step BLANK = new Step().set(new Stimulus(), 0);
+
+        public int     eye;    // eye where to draw the stimulus
+        public int     type;   // type of stimulus
+        public float   cx, cy; // coordinates of the stimulus center in degrees
+        public float   sx, sy; // size of the stimulus in degrees
+        public float   theta;  // rotation of the stimulus in degrees
+        public float   lum;    // luminance from 0 to 1
+        public final float[] col = new float[4]; // color, a private copy
+        public float   sf, phase, sigma, contrast; // pattern parameters
+
+        public Step set(Stimulus stim, int step) {
+            eye   = stim.eye[step];
+            type  = stim.type[step];
+            cx    = stim.cx[step];
+            cy    = stim.cy[step];
+            sx    = stim.sx[step];
+            sy    = stim.sy[step];
+            theta = stim.theta[step];
+            lum   = stim.lum[step];
+            System.arraycopy(stim.col[step], 0, col, 0, col.length);
+            sf    = stim.sf[step];
+            phase = stim.phase[step];
+            sigma = stim.sigma[step];
+            contrast = stim.contrast[step];
+            return this;
+        }
+    }
+
+    public volatile Background bg = new Background(); // must not be modified once published
+    public volatile Step step = Step.BLANK;
+}
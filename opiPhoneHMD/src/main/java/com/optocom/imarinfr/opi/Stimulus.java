@@ -1,11 +1,24 @@
 package com.optocom.imarinfr.opi;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 public class Stimulus {
     public static final String CIRCLE = "circle";
     public static final String SQUARE = "square";
     public static final String CROSS = "cross";
     public static final String MALTESE = "maltese";
     public static final String ANNULUS = "annulus";
+    public static final String GABOR = "gabor";
+    public static final String GRATING = "grating";
+    public static final String GAUSSIAN = "gaussian";
+
+    static final int GLOBAL_PARS  = 3;               // number of global parameters
+    static final int STEP_PARS    = 13;              // number of parameters per step
+    static final int STEP_BYTES   = STEP_PARS * 4;   // size of each binary step block
+    static final int PATTERN_PARS = 4;               // optional pattern parameters after each step
+    static final int PATTERN_STEP_PARS  = STEP_PARS + PATTERN_PARS;
+    static final int PATTERN_STEP_BYTES = PATTERN_STEP_PARS * 4;
 
     public int   nsteps;   // number of steps in the presentation
     public int[] eye;      // eye where to draw the stimulus in each step
@@ -14,10 +27,16 @@ public class Stimulus {
     public float[] sx, sy; // size of the stimulus in this each in degrees
     public float[] theta;  // rotation of the stimulus in this each in degrees
     public long[] tstep;   // step duration in ms
-    public float[] lum;    // step luminance from 0 to 1
+    public float[] lum;    // step luminance up to the calibrated maximum, 1 if uncalibrated
     public float[][] col;  // step color
+    public float[] sf;     // pattern spatial frequency in cycles per degree, across theta
+    public float[] phase;  // pattern phase in degrees
+    public float[] sigma;  // pattern gaussian envelope sd in degrees
+    public float[] contrast; // pattern Michelson contrast around lum
     public long  d;        // total stimulus duration in ms
     public long  w;        // response window in ms
+    public long  frames;   // frames the stimulus was shown for, set when presented
+    public int   id;       // trial id while queued
 
     public Stimulus() {
         nsteps = 1;
@@ -26,7 +45,9 @@ public class Stimulus {
         initStepParams(nsteps);
     }
 
+    // arrays are reused when large enough, so pooled stimuli are parsed without allocating
     public void initStepParams(int n) {
+        if(eye != null && eye.length >= n) return;
         eye    = new int[n];
         type   = new int[n];
         cx     = new float[n];
@@ -37,6 +58,10 @@ public class Stimulus {
         tstep  = new long[n];
         lum    = new float[n];
         col    = new float[n][4];
+        sf     = new float[n];
+        phase  = new float[n];
+        sigma  = new float[n];
+        contrast = new float[n];
     }
 
     public int steps() {
@@ -44,42 +69,114 @@ public class Stimulus {
     }
 
     public boolean parseGlobalPars(String[] pars) {
-        if(pars.length != 3) return false;
+        if(pars.length != GLOBAL_PARS) return false;
+        return parseGlobalPars(pars, 0);
+    }
+
+    // the pattern parameters may be left out, as for stimuli that are not patterned
+    public boolean parseStepPars(int step, String[] pars) {
+        if(pars.length != STEP_PARS && pars.length != PATTERN_STEP_PARS) return false;
+        return parseStepPars(step, pars, 0, pars.length == PATTERN_STEP_PARS);
+    }
+
+    // global parameters followed by all step parameters in a single message, every
+    // step with or every step without pattern parameters
+    public boolean parseInlinePars(String[] pars) {
+        if(pars.length < GLOBAL_PARS || !parseGlobalPars(pars, 0)) return false;
+        boolean pattern = pars.length == GLOBAL_PARS + (long) nsteps * PATTERN_STEP_PARS;
+        if(!pattern && pars.length != GLOBAL_PARS + (long) nsteps * STEP_PARS) return false;
+        int size = pattern ? PATTERN_STEP_PARS : STEP_PARS;
+        for(int step = 0; step < nsteps; step++)
+            if(!parseStepPars(step, pars, GLOBAL_PARS + step * size, pattern)) return false;
+        return true;
+    }
+
+    private boolean parseGlobalPars(String[] pars, int from) {
         try {
-            nsteps = Integer.parseInt(pars[0]); // number of stimulus steps
-            d      = Long.parseLong(pars[1]);   // stimulus duration
-            w      = Long.parseLong(pars[2]);   // response window
+            nsteps = Integer.parseInt(pars[from]);    // number of stimulus steps
+            d      = Long.parseLong(pars[from + 1]);  // stimulus duration
+            w      = Long.parseLong(pars[from + 2]);  // response window
+            if(!areGlobalParsValid()) return false;
             // prepare to receive detail
             initStepParams(nsteps);
         } catch(NumberFormatException e) { // set all to zero or non-valid values
             return false;
         }
-        return areGlobalParsValid();
+        return true;
     }
 
-    public boolean parseStepPars(int step, String[] pars) {
-        if(pars.length != 13) return false;
+    private boolean parseStepPars(int step, String[] pars, int from, boolean pattern) {
         try {
-            eye[step]    = Integer.parseInt(pars[0]);
-            type[step]   = parseTypes(pars[1]);
-            cx[step]     = Float.parseFloat(pars[2]);
-            cy[step]     = Float.parseFloat(pars[3]);
-            sx[step]     = Float.parseFloat(pars[4]);
-            sy[step]     = Float.parseFloat(pars[5]);
-            theta[step]  = Float.parseFloat(pars[6]);
-            tstep[step]  = Long.parseLong(pars[7]);
-            lum[step]    = Float.parseFloat(pars[8]);
-            col[step][0] = Float.parseFloat(pars[9]);
-            col[step][1] = Float.parseFloat(pars[10]);
-            col[step][2] = Float.parseFloat(pars[11]);
-            col[step][3] = Float.parseFloat(pars[12]);
+            eye[step]    = Integer.parseInt(pars[from]);
+            type[step]   = parseTypes(pars[from + 1]);
+            cx[step]     = Float.parseFloat(pars[from + 2]);
+            cy[step]     = Float.parseFloat(pars[from + 3]);
+            sx[step]     = Float.parseFloat(pars[from + 4]);
+            sy[step]     = Float.parseFloat(pars[from + 5]);
+            theta[step]  = Float.parseFloat(pars[from + 6]);
+            tstep[step]  = Long.parseLong(pars[from + 7]);
+            lum[step]    = Float.parseFloat(pars[from + 8]);
+            col[step][0] = Float.parseFloat(pars[from + 9]);
+            col[step][1] = Float.parseFloat(pars[from + 10]);
+            col[step][2] = Float.parseFloat(pars[from + 11]);
+            col[step][3] = Float.parseFloat(pars[from + 12]);
+            if(pattern) {
+                sf[step]       = Float.parseFloat(pars[from + 13]);
+                phase[step]    = Float.parseFloat(pars[from + 14]);
+                sigma[step]    = Float.parseFloat(pars[from + 15]);
+                contrast[step] = Float.parseFloat(pars[from + 16]);
+            } else {
+                clearPattern(step);
+            }
         } catch(NumberFormatException e) { // set all to zero or non-valid values
             return false;
         }
         return areStepParsValid(step);
     }
 
-    public int parseTypes(String type) {
+    // binary counterpart of parseGlobalPars and parseStepPars: global parameters followed by
+    // all step blocks, little-endian 32-bit fields in the same order as the text protocol
+    // and stimulus type sent as its numeric code. Pattern parameters are told apart by size
+    public boolean parseParameters(ByteBuffer buf) {
+        try {
+            nsteps = buf.getInt();
+            d      = buf.getInt();
+            w      = buf.getInt();
+            if(!areGlobalParsValid()) return false;
+            boolean pattern = buf.remaining() == (long) nsteps * PATTERN_STEP_BYTES;
+            if(!pattern && buf.remaining() != (long) nsteps * STEP_BYTES) return false;
+            initStepParams(nsteps);
+            for(int step = 0; step < nsteps; step++) {
+                eye[step]    = buf.getInt();
+                type[step]   = buf.getInt();
+                cx[step]     = buf.getFloat();
+                cy[step]     = buf.getFloat();
+                sx[step]     = buf.getFloat();
+                sy[step]     = buf.getFloat();
+                theta[step]  = buf.getFloat();
+                tstep[step]  = buf.getInt();
+                lum[step]    = buf.getFloat();
+                col[step][0] = buf.getFloat();
+                col[step][1] = buf.getFloat();
+                col[step][2] = buf.getFloat();
+                col[step][3] = buf.getFloat();
+                if(pattern) {
+                    sf[step]       = buf.getFloat();
+                    phase[step]    = buf.getFloat();
+                    sigma[step]    = buf.getFloat();
+                    contrast[step] = buf.getFloat();
+                } else {
+                    clearPattern(step);
+                }
+                if(!areStepParsValid(step)) return false;
+            }
+        } catch(BufferUnderflowException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public static int parseTypes(String type) {
         switch (type) {
             case CIRCLE:
                 return 0;
@@ -91,20 +188,42 @@ public class Stimulus {
                 return 3;
             case ANNULUS:
                 return 4;
+            case GABOR:
+                return 5;
+            case GRATING:
+                return 6;
+            case GAUSSIAN:
+                return 7;
             default:
                 return -1;
         }
     }
 
+    private void clearPattern(int step) {
+        sf[step]       = 0;
+        phase[step]    = 0;
+        sigma[step]    = 0;
+        contrast[step] = 0;
+    }
+
+    // highest luminance the step reaches, at the peaks of the carrier for gabor and grating
+    private float peakLuminance(int step) {
+        return type[step] == 5 || type[step] == 6 ? lum[step] * (1 + contrast[step]) : lum[step];
+    }
+
     public boolean areGlobalParsValid() {
         return (nsteps > 0 && d > 0 && w > 0);
     }
 
     public boolean areStepParsValid(int step) {
         return eye[step] >= 0 && eye[step] <= 2 &&
-                !(lum[step] < 0) && !(lum[step] > 1) &&
+                !(lum[step] < 0) && !(peakLuminance(step) > Calibration.current().max()) &&
                 !(theta[step] < 0) && !(theta[step] >= 360) &&
-                type[step] >= -1 && type[step] <= 4 &&
+                type[step] >= -1 && type[step] <= 7 &&
+                !(sf[step] < 0) && !Float.isInfinite(sf[step]) &&
+                !(phase[step] < 0) && !(phase[step] >= 360) &&
+                !(contrast[step] < 0) && !(contrast[step] > 1) &&
+                (sigma[step] > 0 && !Float.isInfinite(sigma[step]) || type[step] != 5 && type[step] != 7) &&
                 tstep[step] > 0 &&
                 !(col[step][0] < 0) && !(col[step][0] > 1) &&
                 !(col[step][1] < 0) && !(col[step][1] > 1) &&
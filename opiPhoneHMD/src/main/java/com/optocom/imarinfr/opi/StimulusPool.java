@@ -0,0 +1,24 @@
+package com.optocom.imarinfr.opi;
+
+// stimuli allocated up front and recycled, so presenting a trial does not allocate.
+// The pool only grows if more stimuli are in flight at once than it was made with
+public class StimulusPool {
+    private final Stimulus[] free;
+    private int nfree;
+
+    public StimulusPool(int size, int steps) {
+        free = new Stimulus[size];
+        for(nfree = 0; nfree < size; nfree++) {
+            free[nfree] = new Stimulus();
+            free[nfree].initStepParams(steps);
+        }
+    }
+
+    public synchronized Stimulus acquire() {
+        return nfree > 0 ? free[--nfree] : new Stimulus();
+    }
+
+    public synchronized void release(Stimulus stim) {
+        if(nfree < free.length) free[nfree++] = stim;
+    }
+}
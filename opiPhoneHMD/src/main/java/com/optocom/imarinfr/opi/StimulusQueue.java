@@ -0,0 +1,73 @@
+package com.optocom.imarinfr.opi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// presents queued stimuli back to back, so the client can push trials ahead of time
+// and results come back tagged with their trial id as soon as each one completes.
+// Stimuli come from the pool and go back to it once presented
+public class StimulusQueue extends Thread {
+    private static final int CAPACITY = 1024;
+
+    public interface Listener {
+        void onResult(int id, long time, long frames);
+    }
+
+    private final Renderer renderer;
+    private final StimulusPool pool;
+    private final ArrayBlockingQueue<Stimulus> trials = new ArrayBlockingQueue<>(CAPACITY);
+
+    private volatile Listener listener;
+    private volatile long isi = 0; // inter-stimulus interval in ms
+    private long lastEnd = 0;      // nanoTime at which the last trial finished
+
+    public StimulusQueue(Renderer mainRenderer, StimulusPool stimulusPool) {
+        renderer = mainRenderer;
+        pool     = stimulusPool;
+        setDaemon(true);
+        start();
+    }
+
+    @Override
+    public void run() {
+        Stimulus trial;
+        long wait;
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                trial = trials.take();
+                // honour the inter-stimulus interval counted from the end of the last trial
+                wait = lastEnd + TimeUnit.MILLISECONDS.toNanos(isi) - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            long time = renderer.presentStimulus(trial);
+            lastEnd = System.nanoTime();
+            Listener current = listener;
+            if (current != null) current.onResult(trial.id, time, trial.frames);
+            pool.release(trial);
+        }
+    }
+
+    public void setListener(Listener newListener) {
+        listener = newListener;
+    }
+
+    // returns false if the queue is full
+    public boolean add(int id, Stimulus stim) {
+        stim.id = id;
+        return trials.offer(stim);
+    }
+
+    public void clear() {
+        Stimulus stim;
+        while ((stim = trials.poll()) != null) pool.release(stim);
+    }
+
+    public boolean setIsi(long newIsi) {
+        if (newIsi < 0) return false;
+        isi = newIsi;
+        return true;
+    }
+}
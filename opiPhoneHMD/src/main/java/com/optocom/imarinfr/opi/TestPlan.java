@@ -0,0 +1,151 @@
+package com.optocom.imarinfr.opi;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// table of single-step stimulus templates uploaded once per test, so each trial only
+// needs the template index and its luminance. Stored as one primitive array per field
+public class TestPlan {
+    static final int TEMPLATE_PARS  = 14;                 // number of parameters per template
+    static final int TEMPLATE_BYTES = TEMPLATE_PARS * 4;  // size of each binary template
+    static final int PATTERN_TEMPLATE_PARS  = TEMPLATE_PARS + Stimulus.PATTERN_PARS;
+    static final int PATTERN_TEMPLATE_BYTES = PATTERN_TEMPLATE_PARS * 4;
+
+    private int     n;      // number of templates
+    private int[]   eye;    // eye where to draw the stimulus
+    private int[]   type;   // type of stimulus
+    private float[] cx, cy; // coordinates of the stimulus center in degrees
+    private float[] sx, sy; // size of the stimulus in degrees
+    private float[] theta;  // rotation of the stimulus in degrees
+    private long[]  tstep;  // presentation time in ms
+    private float[] col;    // color, 4 consecutive channels per template
+    private float[] pattern; // sf, phase, sigma and contrast, 4 consecutive per template
+    private long[]  d;      // stimulus duration in ms
+    private long[]  w;      // response window in ms
+
+    private void init(int size) {
+        n     = size;
+        eye   = new int[n];
+        type  = new int[n];
+        cx    = new float[n];
+        cy    = new float[n];
+        sx    = new float[n];
+        sy    = new float[n];
+        theta = new float[n];
+        tstep = new long[n];
+        col   = new float[4 * n];
+        pattern = new float[4 * n];
+        d     = new long[n];
+        w     = new long[n];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    // number of templates followed by the templates, each with the OPI_PRESENT step
+    // parameters except luminance, then duration and response window. Pattern
+    // parameters are in every template or in none
+    public boolean parseParameters(String[] pars) {
+        int size, at;
+        try {
+            size = Integer.parseInt(pars[0]);
+            if(size <= 0) return false;
+            boolean withPattern = pars.length == 1 + (long) size * PATTERN_TEMPLATE_PARS;
+            if(!withPattern && pars.length != 1 + (long) size * TEMPLATE_PARS) return false;
+            int stride = withPattern ? PATTERN_TEMPLATE_PARS : TEMPLATE_PARS;
+            init(size);
+            for(int i = 0; i < n; i++) {
+                at = 1 + i * stride;
+                eye[i]         = Integer.parseInt(pars[at]);
+                type[i]        = Stimulus.parseTypes(pars[at + 1]);
+                cx[i]          = Float.parseFloat(pars[at + 2]);
+                cy[i]          = Float.parseFloat(pars[at + 3]);
+                sx[i]          = Float.parseFloat(pars[at + 4]);
+                sy[i]          = Float.parseFloat(pars[at + 5]);
+                theta[i]       = Float.parseFloat(pars[at + 6]);
+                tstep[i]       = Long.parseLong(pars[at + 7]);
+                col[4 * i]     = Float.parseFloat(pars[at + 8]);
+                col[4 * i + 1] = Float.parseFloat(pars[at + 9]);
+                col[4 * i + 2] = Float.parseFloat(pars[at + 10]);
+                col[4 * i + 3] = Float.parseFloat(pars[at + 11]);
+                if(withPattern) {
+                    for(int k = 0; k < 4; k++) pattern[4 * i + k] = Float.parseFloat(pars[at + 12 + k]);
+                    at += Stimulus.PATTERN_PARS;
+                }
+                d[i]           = Long.parseLong(pars[at + 12]);
+                w[i]           = Long.parseLong(pars[at + 13]);
+            }
+        } catch(NumberFormatException e) {
+            return false;
+        }
+        return isValid();
+    }
+
+    // binary counterpart of parseParameters, with stimulus type sent as its numeric code
+    public boolean parseParameters(ByteBuffer buf) {
+        try {
+            int size = buf.getInt();
+            if(size <= 0) return false;
+            boolean withPattern = buf.remaining() == (long) size * PATTERN_TEMPLATE_BYTES;
+            if(!withPattern && buf.remaining() != (long) size * TEMPLATE_BYTES) return false;
+            init(size);
+            for(int i = 0; i < n; i++) {
+                eye[i]         = buf.getInt();
+                type[i]        = buf.getInt();
+                cx[i]          = buf.getFloat();
+                cy[i]          = buf.getFloat();
+                sx[i]          = buf.getFloat();
+                sy[i]          = buf.getFloat();
+                theta[i]       = buf.getFloat();
+                tstep[i]       = buf.getInt();
+                col[4 * i]     = buf.getFloat();
+                col[4 * i + 1] = buf.getFloat();
+                col[4 * i + 2] = buf.getFloat();
+                col[4 * i + 3] = buf.getFloat();
+                if(withPattern)
+                    for(int k = 0; k < 4; k++) pattern[4 * i + k] = buf.getFloat();
+                d[i]           = buf.getInt();
+                w[i]           = buf.getInt();
+            }
+        } catch(BufferUnderflowException e) {
+            return false;
+        }
+        return isValid();
+    }
+
+    // fills stim with the single-step stimulus of template index at luminance lum
+    public boolean fill(int index, float lum, Stimulus stim) {
+        if(index < 0 || index >= n) return false;
+        stim.nsteps = 1;
+        stim.d      = d[index];
+        stim.w      = w[index];
+        stim.initStepParams(1);
+        stim.eye[0]    = eye[index];
+        stim.type[0]   = type[index];
+        stim.cx[0]     = cx[index];
+        stim.cy[0]     = cy[index];
+        stim.sx[0]     = sx[index];
+        stim.sy[0]     = sy[index];
+        stim.theta[0]  = theta[index];
+        stim.tstep[0]  = tstep[index];
+        stim.lum[0]    = lum;
+        stim.col[0][0] = col[4 * index];
+        stim.col[0][1] = col[4 * index + 1];
+        stim.col[0][2] = col[4 * index + 2];
+        stim.col[0][3] = col[4 * index + 3];
+        stim.sf[0]       = pattern[4 * index];
+        stim.phase[0]    = pattern[4 * index + 1];
+        stim.sigma[0]    = pattern[4 * index + 2];
+        stim.contrast[0] = pattern[4 * index + 3];
+        return stim.areGlobalParsValid() && stim.areStepParsValid(0);
+    }
+
+    // luminance is checked per trial, so validate every template with a valid one
+    private boolean isValid() {
+        Stimulus stim = new Stimulus();
+        for(int i = 0; i < n; i++)
+            if(!fill(i, 0, stim)) return false;
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.optocom.imarinfr.opi;
+
+import java.util.Random;
+
+// runs a threshold procedure over every location of a test plan on the phone, choosing
+// locations at random and streaming progress, so no trial waits for the network
+public class ThresholdEngine extends Thread {
+
+    public interface Listener {
+        void onProgress(int loc, float db, long time);
+        void onThreshold(int loc, float db, int presentations);
+        void onTestDone(boolean completed, Procedure procedure, int locations);
+    }
+
+    private final Renderer renderer;
+    private final TestPlan plan;
+    private final Procedure procedure;
+    private final Listener listener;
+    private final Stimulus stim = new Stimulus();
+    private final Random random = new Random();
+    private final int[] active; // locations still running, the first nactive of them
+
+    private volatile boolean stopped = false;
+
+    public ThresholdEngine(Renderer mainRenderer, TestPlan testPlan, Procedure testProcedure,
+                           Listener testListener) {
+        renderer  = mainRenderer;
+        plan      = testPlan;
+        procedure = testProcedure;
+        listener  = testListener;
+        active    = new int[plan.size()];
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        int i, loc, nactive = plan.size();
+        float db;
+        long time;
+        procedure.reset(nactive);
+        for(loc = 0; loc < nactive; loc++) active[loc] = loc;
+        while(nactive > 0 && !stopped) {
+            i   = random.nextInt(nactive);
+            loc = active[i];
+            db  = procedure.next(loc);
+            if(!plan.fill(loc, dbToLuminance(db), stim)) { // cannot be presented, give up on it
+                active[i] = active[--nactive];
+                continue;
+            }
+            time = renderer.presentStimulus(stim);
+            procedure.update(loc, db, time > 0);
+            listener.onProgress(loc, db, time);
+            if(procedure.finished(loc)) {
+                listener.onThreshold(loc, procedure.threshold(loc), procedure.presentations(loc));
+                active[i] = active[--nactive];
+            }
+        }
+        listener.onTestDone(!stopped, procedure, plan.size());
+    }
+
+    public void stopTest() {
+        stopped = true;
+    }
+
+    // dB of attenuation from the maximum luminance, 0 dB being the brightest stimulus
+    public static float dbToLuminance(float db) {
+        return Calibration.current().max() * (float) Math.pow(10, -db / 10);
+    }
+}
@@ -0,0 +1,119 @@
+package com.optocom.imarinfr.opi;
+
+// ZEST: Bayesian threshold estimation. Each location keeps a probability mass function
+// over the threshold domain, updated after every presentation with a cumulative gaussian
+// psychometric function, and is presented at the mean of its pmf
+public class Zest implements Procedure {
+    public static final int   DOMAIN_MIN = -5;   // lowest threshold in the domain in dB
+    public static final int   DOMAIN_MAX = 40;   // highest threshold in the domain in dB
+    private static final int  DOMAIN_SIZE = DOMAIN_MAX - DOMAIN_MIN + 1;
+    private static final float FPR   = 0.03f;    // false positive rate
+    private static final float FNR   = 0.03f;    // false negative rate
+    private static final float SLOPE = 1.0f;     // sd of the psychometric function in dB
+    private static final float FLOOR = 0.001f;   // prior floor, so no threshold is ruled out
+
+    private final float priorMean, priorSd; // gaussian prior in dB
+    private final float stopSd;             // stop when the pmf sd falls below this
+    private final int   maxPresentations;   // or after this many presentations
+    // likelihood of seeing a stimulus at level index x for threshold index t
+    private final float[][] seenLikelihood = new float[DOMAIN_SIZE][DOMAIN_SIZE];
+    private final float[] prior = new float[DOMAIN_SIZE];
+
+    private float[][] pmf = new float[0][];
+    private int[] count = new int[0];
+
+    public Zest(float priorMean, float priorSd, float stopSd, int maxPresentations) {
+        this.priorMean        = priorMean;
+        this.priorSd          = priorSd;
+        this.stopSd           = stopSd;
+        this.maxPresentations = maxPresentations;
+        float sum = 0;
+        for(int t = 0; t < DOMAIN_SIZE; t++) {
+            float z = (DOMAIN_MIN + t - priorMean) / priorSd;
+            prior[t] = (float) Math.exp(-0.5 * z * z) + FLOOR;
+            sum += prior[t];
+            // seen if the stimulus is brighter, i.e. lower in dB, than the threshold
+            for(int x = 0; x < DOMAIN_SIZE; x++)
+                seenLikelihood[x][t] = FPR + (1 - FPR - FNR) * (1 - phi((x - t) / SLOPE));
+        }
+        for(int t = 0; t < DOMAIN_SIZE; t++) prior[t] /= sum;
+    }
+
+    public boolean isValid() {
+        return priorMean >= DOMAIN_MIN && priorMean <= DOMAIN_MAX && priorSd > 0 &&
+               stopSd > 0 && maxPresentations > 0;
+    }
+
+    @Override
+    public void reset(int locations) {
+        if(pmf.length != locations) {
+            pmf   = new float[locations][DOMAIN_SIZE];
+            count = new int[locations];
+        }
+        for(int loc = 0; loc < locations; loc++) {
+            System.arraycopy(prior, 0, pmf[loc], 0, DOMAIN_SIZE);
+            count[loc] = 0;
+        }
+    }
+
+    @Override
+    public float next(int loc) {
+        // present at the pmf mean, within the levels the display can render
+        return Math.max(0, Math.min(DOMAIN_MAX, Math.round(mean(loc))));
+    }
+
+    @Override
+    public void update(int loc, float db, boolean seen) {
+        int x = Math.round(db) - DOMAIN_MIN;
+        float sum = 0;
+        float[] p = pmf[loc];
+        float[] lik = seenLikelihood[x];
+        for(int t = 0; t < DOMAIN_SIZE; t++) {
+            p[t] *= seen ? lik[t] : 1 - lik[t];
+            sum += p[t];
+        }
+        for(int t = 0; t < DOMAIN_SIZE; t++) p[t] /= sum;
+        count[loc]++;
+    }
+
+    @Override
+    public boolean finished(int loc) {
+        return count[loc] >= maxPresentations || sd(loc) < stopSd;
+    }
+
+    @Override
+    public float threshold(int loc) {
+        return mean(loc);
+    }
+
+    @Override
+    public int presentations(int loc) {
+        return count[loc];
+    }
+
+    private float mean(int loc) {
+        float m = 0;
+        float[] p = pmf[loc];
+        for(int t = 0; t < DOMAIN_SIZE; t++) m += p[t] * (DOMAIN_MIN + t);
+        return m;
+    }
+
+    private float sd(int loc) {
+        float m = mean(loc), v = 0, dt;
+        float[] p = pmf[loc];
+        for(int t = 0; t < DOMAIN_SIZE; t++) {
+            dt = DOMAIN_MIN + t - m;
+            v += p[t] * dt * dt;
+        }
+        return (float) Math.sqrt(v);
+    }
+
+    // standard normal cdf, Abramowitz and Stegun 7.1.26 approximation of erf
+    private static float phi(float z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 +
+                     t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return (float) (z < 0 ? 0.5 * (1 - erf) : 0.5 * (1 + erf));
+    }
+}
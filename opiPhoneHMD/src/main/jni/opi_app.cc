@@ -20,11 +20,18 @@
 #include <android/asset_manager_jni.h>
 #include <android/log.h>
 
+#include <algorithm>
 #include <array>
 #include <cmath>
+#include <cstddef>
+#include <cstring>
 #include <fstream>
+#include <string>
+
+#include <EGL/egl.h>
 
 #include "cardboard.h"
+#include "util/hash.h"
 
 namespace ndk_opi {
 
@@ -37,36 +44,231 @@ namespace ndk_opi {
         constexpr float kStimulusDistance       = 45.0f;
 
         Matrix4x4 projection_matrix;
+        Matrix4x4 view_projection_matrices[2];
         Matrix4x4 model_background;
         Matrix4x4 model_fixation_target;
         Matrix4x4 model_stimulus;
 
-// Simple shaders to render .obj files without any lighting.
+        constexpr const char* kGlslVersion = "#version 300 es\n";
+        constexpr const char* kMultiview   = "#define MULTIVIEW\n";
+
+// Simple shaders to render flat shapes without any lighting. Shapes are drawn on a
+// quad from their signed distance, in units of the shape, with edges antialiased
+// over a pixel. Luminance is mapped to an output level by inverting the measured
+// calibration table, then scaled by colour. Patterned stimuli (gabor, grating and
+// gaussian) are generated per fragment from their parameters in degrees and fade
+// into the background in luminance, before the table is applied. With multiview,
+// both eyes are drawn in one pass, each a layer of the scene target, and shapes
+// not shown to an eye are moved out of its clip volume
         constexpr const char* kObjVertexShader =
                 R"glsl(
+    #ifdef MULTIVIEW
+    #extension GL_OVR_multiview2 : require
+    layout(num_views = 2) in;
+    uniform mat4 u_MVP[2];
+    uniform ivec2 u_Visible;
+    #else
     uniform mat4 u_MVP;
-    attribute vec4 a_Position;
-    attribute vec2 a_UV;
-    varying vec2 v_UV;
+    #endif
+    in vec4 a_Position;
+    out vec2 v_Position;
 
     void main() {
-      v_UV = a_UV;
+      v_Position = a_Position.xy;
+    #ifdef MULTIVIEW
+      int view = int(gl_ViewID_OVR);
+      gl_Position = u_Visible[view] != 0 ? u_MVP[view] * a_Position : vec4(2.0, 2.0, 2.0, 1.0);
+    #else
       gl_Position = u_MVP * a_Position;
+    #endif
     })glsl";
 
         constexpr const char* kObjFragmentShader =
                 R"glsl(
-    precision mediump float;
+    precision highp float;
+
+    uniform highp sampler2D u_Calibration; // luminance at evenly spaced output levels
+    uniform float u_Lum;
+    uniform vec3 u_Color;
+    uniform int u_Shape;
+    uniform vec4 u_Pattern;   // cycles per degree, phase and sigma in degrees, contrast
+    uniform vec2 u_Size;      // degrees per shape unit along x and y
+    uniform float u_BgLum;
+    uniform vec3 u_BgColor;
+    in vec2 v_Position;
+    out vec4 o_Color;
+
+    float box(vec2 p, vec2 size) {
+      vec2 q = abs(p) - size;
+      return length(max(q, 0.0)) + min(max(q.x, q.y), 0.0);
+    }
+
+    // isosceles trapezoid along y, half widths r1 at -h and r2 at h
+    float trapezoid(vec2 p, float r1, float r2, float h) {
+      vec2 k1 = vec2(r2, h);
+      vec2 k2 = vec2(r2 - r1, 2.0 * h);
+      p.x = abs(p.x);
+      vec2 ca = vec2(p.x - min(p.x, p.y < 0.0 ? r1 : r2), abs(p.y) - h);
+      vec2 cb = p - k1 + k2 * clamp(dot(k1 - p, k2) / dot(k2, k2), 0.0, 1.0);
+      float s = cb.x < 0.0 && ca.y < 0.0 ? -1.0 : 1.0;
+      return s * sqrt(min(dot(ca, ca), dot(cb, cb)));
+    }
+
+    float shapeDistance(vec2 p) {
+      switch (u_Shape) {
+        case 0: // circle
+          return length(p) - 1.0;
+        case 1: // square
+          return box(p, vec2(1.0));
+        case 2: // cross
+          return min(box(p, vec2(1.0, 0.1)), box(p, vec2(0.1, 1.0)));
+        case 3: { // maltese cross, from an arm along x by symmetry
+          vec2 q = abs(p);
+          if (q.y > q.x) q = q.yx;
+          return trapezoid(vec2(q.y, q.x - 0.5), 0.02, 0.2, 0.5);
+        }
+        case 4: // annulus, inner radius 0.6
+          return abs(length(p) - 0.8) - 0.2;
+        case 5: // gabor, grating and gaussian are windowed by the circle
+        case 6:
+        case 7:
+          return length(p) - 1.0;
+        default:
+          return 1.0;
+      }
+    }
 
-    uniform sampler2D u_Texture;
-    varying vec2 v_UV;
+    float measured(int i) {
+      return texelFetch(u_Calibration, ivec2(i, 0), 0).r;
+    }
+
+    // output level of luminance lum, interpolated linearly between the measured
+    // levels around it. The table does not decrease, so they are found by bisection
+    float level(float lum) {
+      int last = textureSize(u_Calibration, 0).x - 1;
+      lum = clamp(lum, measured(0), measured(last));
+      int lo = 0;
+      int hi = last;
+      while (hi - lo > 1) {
+        int mid = (lo + hi) / 2;
+        if (measured(mid) <= lum) lo = mid; else hi = mid;
+      }
+      float span = measured(hi) - measured(lo);
+      float frac = span > 0.0 ? (lum - measured(lo)) / span : 0.0;
+      return (float(lo) + frac) / float(last);
+    }
 
     void main() {
-      // The y coordinate of this sample's textures is reversed compared to
-      // what OpenGL expects, so we invert the y coordinate.
-      gl_FragColor = texture2D(u_Texture, vec2(v_UV.x, 1.0 - v_UV.y));
+      float d = shapeDistance(v_Position);
+      float coverage = clamp(0.5 - d / fwidth(d), 0.0, 1.0);
+      if (coverage <= 0.0) discard; // keep depth behind the shape untouched
+      if (u_Shape < 5) {
+        o_Color = vec4(level(u_Lum) * u_Color, coverage);
+        return;
+      }
+      // sinusoidal carrier along x around u_Lum, under a gaussian envelope
+      vec2 p = v_Position * u_Size;
+      float carrier = u_Shape == 7 ? 0.0 : cos(6.28318531 * u_Pattern.x * p.x + radians(u_Pattern.y));
+      float envelope = u_Shape == 6 ? 1.0 : exp(-0.5 * dot(p, p) / (u_Pattern.z * u_Pattern.z));
+      float w = envelope * coverage;
+      float lum = mix(u_BgLum, u_Lum * (1.0 + u_Pattern.w * carrier), w);
+      o_Color = vec4(level(lum) * mix(u_BgColor, u_Color, w), 1.0);
     })glsl";
 
+// Resolves the scene target into the 8-bit eye texture. Each channel is rounded
+// down or up at random with the probability that makes the expected output equal
+// to the scene value, so levels between 8-bit steps are reproduced on average
+// over the pixels of an area. Frames are only drawn when the scene changes, so
+// the dither cannot be averaged over time: the noise depends on the pixel alone,
+// and a pixel keeps its rounding from frame to frame instead of flickering at
+// stimulus onset and offset. With multiview, the eye layers are laid side by side
+        constexpr const char* kResolveVertexShader =
+                R"glsl(
+    void main() {
+      // one triangle covering the viewport
+      vec2 p = vec2(float((gl_VertexID << 1) & 2), float(gl_VertexID & 2));
+      gl_Position = vec4(p * 2.0 - 1.0, 0.0, 1.0);
+    })glsl";
+
+        constexpr const char* kResolveFragmentShader =
+                R"glsl(
+    precision highp float;
+    precision highp int;
+
+    #ifdef MULTIVIEW
+    precision highp sampler2DArray;
+    uniform sampler2DArray u_Scene;
+    #else
+    uniform highp sampler2D u_Scene;
+    #endif
+    out vec4 o_Color;
+
+    float noise(uvec2 p) {
+      uint h = p.x * 73856093u ^ p.y * 19349663u;
+      h ^= h >> 16; h *= 0x7feb352du;
+      h ^= h >> 15; h *= 0x846ca68bu;
+      h ^= h >> 16;
+      return float(h >> 8) * (1.0 / 16777216.0);
+    }
+
+    void main() {
+      ivec2 p = ivec2(gl_FragCoord.xy);
+    #ifdef MULTIVIEW
+      int width = textureSize(u_Scene, 0).x;
+      int eye = p.x >= width ? 1 : 0;
+      vec3 c = texelFetch(u_Scene, ivec3(min(p.x - eye * width, width - 1), p.y, eye), 0).rgb;
+    #else
+      vec3 c = texelFetch(u_Scene, p, 0).rgb;
+    #endif
+      float u = noise(uvec2(gl_FragCoord.xy));
+      o_Color = vec4(floor(clamp(c, 0.0, 1.0) * 255.0 + u) / 255.0, 1.0);
+    })glsl";
+
+// Colour formats to draw the scene in, most precise first, with the number of
+// evenly spaced luminance levels each resolves from black to full output, both
+// included. Half floats keep 11 significant bits, so steps of 1/2048 between
+// 0.5 and 1, and finer below: 2049 levels. Normalized formats of n bits have 2^n
+        struct SceneFormat {
+            GLint internal_format;
+            GLenum format;
+            GLenum type;
+            int levels;
+            const char* extension;  // needed to render to it, if any
+        };
+        constexpr SceneFormat kSceneFormats[] = {
+                {GL_RGBA16F, GL_RGBA, GL_HALF_FLOAT, 2049, "GL_EXT_color_buffer_half_float"},
+                {GL_RGBA16F, GL_RGBA, GL_HALF_FLOAT, 2049, "GL_EXT_color_buffer_float"},
+                {GL_RGB10_A2, GL_RGBA, GL_UNSIGNED_INT_2_10_10_10_REV, 1024, nullptr},
+                {GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE, 256, nullptr}};
+
+        bool HasExtension(const char* name) {
+          const char* extensions = reinterpret_cast<const char*>(glGetString(GL_EXTENSIONS));
+          return extensions != nullptr && strstr(extensions, name) != nullptr;
+        }
+
+        // Returns 0 if the program does not link, e.g. if a required extension is missing
+        GLuint LinkProgram(const char* defines, const char* vertex_source, const char* fragment_source) {
+          const std::string header = std::string(kGlslVersion) + defines;
+          const GLuint vertex_shader = LoadGLShader(GL_VERTEX_SHADER, (header + vertex_source).c_str());
+          const GLuint fragment_shader = LoadGLShader(GL_FRAGMENT_SHADER, (header + fragment_source).c_str());
+          GLuint program = glCreateProgram();
+          glAttachShader(program, vertex_shader);
+          glAttachShader(program, fragment_shader);
+          glLinkProgram(program);
+          GLint linked = GL_FALSE;
+          glGetProgramiv(program, GL_LINK_STATUS, &linked);
+          if (linked != GL_TRUE) {
+            glDeleteProgram(program);
+            return 0;
+          }
+          return program;
+        }
+
+        // Views a shape is drawn into, from its eye code: 0 left, 1 right, 2 both
+        int EyeMask(int eye) {
+          return eye == 2 ? 3 : 1 << eye;
+        }
+
     }  // anonymous namespace
 
     OpiApp::OpiApp(JavaVM* vm, jobject obj)
@@ -78,10 +280,31 @@ namespace ndk_opi {
               device_params_changed(false),
               screen_width(0),
               screen_height(0),
-              depthRenderBuffer(0),
+              device_params_pending(false),
+              device_params_hash(0),
               framebuffer(0),
               texture(0),
-              obj_program(0) {
+              base_valid(false),
+              scene_valid(false),
+              multiview(false),
+              framebuffer_texture_multiview(nullptr),
+              obj_program(0),
+              obj_mvp_param(-1),
+              obj_color_param(-1),
+              obj_lum_param(-1),
+              obj_calibration_param(-1),
+              obj_visible_param(-1),
+              obj_pattern_param(-1),
+              obj_size_param(-1),
+              obj_bg_lum_param(-1),
+              obj_bg_color_param(-1),
+              calibration_table{0, 1},
+              calibration_texture(0),
+              calibration_changed(true),
+              resolve_program(0),
+              resolve_scene_param(-1),
+              luminance_levels(256),
+              frame_params(nullptr) {
       JNIEnv* env;
       vm->GetEnv((void**)&env, JNI_VERSION_1_6);
 
@@ -89,37 +312,58 @@ namespace ndk_opi {
     }
 
     OpiApp::~OpiApp() {
-      CardboardLensDistortion_destroy(lens_distortion);
+      for (const DistortionCacheEntry& entry : distortion_cache) {
+        CardboardLensDistortion_destroy(entry.lens_distortion);
+      }
       CardboardDistortionRenderer_destroy(distortion_renderer);
     }
 
     void OpiApp::OnSurfaceCreated() {
-      const GLuint obj_vertex_shader = LoadGLShader(GL_VERTEX_SHADER, kObjVertexShader);
-      const GLuint obj_fragment_shader = LoadGLShader(GL_FRAGMENT_SHADER, kObjFragmentShader);
-
-      obj_program = glCreateProgram();
-      glAttachShader(obj_program, obj_vertex_shader);
-      glAttachShader(obj_program, obj_fragment_shader);
-      glLinkProgram(obj_program);
+      // draw both eyes in a single pass where the GPU can, the way it was done otherwise
+      framebuffer_texture_multiview = nullptr;
+      obj_program = 0;
+      resolve_program = 0;
+      calibration_texture = 0; // lost with the old context
+      if (HasExtension("GL_OVR_multiview2")) {
+        framebuffer_texture_multiview = reinterpret_cast<PFNGLFRAMEBUFFERTEXTUREMULTIVIEWOVRPROC>(
+                eglGetProcAddress("glFramebufferTextureMultiviewOVR"));
+        if (framebuffer_texture_multiview != nullptr) {
+          obj_program = LinkProgram(kMultiview, kObjVertexShader, kObjFragmentShader);
+          resolve_program = LinkProgram(kMultiview, kResolveVertexShader, kResolveFragmentShader);
+        }
+      }
+      multiview = obj_program != 0 && resolve_program != 0;
+      if (!multiview) {
+        glDeleteProgram(obj_program);
+        glDeleteProgram(resolve_program);
+        obj_program = LinkProgram("", kObjVertexShader, kObjFragmentShader);
+        resolve_program = LinkProgram("", kResolveVertexShader, kResolveFragmentShader);
+      }
+      LOGD("Drawing %s", multiview ? "both eyes in one pass" : "one eye at a time");
       glUseProgram(obj_program);
 
       CHECKGLERROR("Obj program");
 
-      GLuint obj_pos = glGetAttribLocation(obj_program, "a_Position");
-      GLuint obj_uv  = glGetAttribLocation(obj_program, "a_UV");
+      GLuint obj_pos  = glGetAttribLocation(obj_program, "a_Position");
+      GLint obj_shape = glGetUniformLocation(obj_program, "u_Shape");
+      obj_mvp_param   = glGetUniformLocation(obj_program, "u_MVP");
+      obj_color_param = glGetUniformLocation(obj_program, "u_Color");
+      obj_lum_param   = glGetUniformLocation(obj_program, "u_Lum");
+      obj_calibration_param = glGetUniformLocation(obj_program, "u_Calibration");
+      obj_visible_param = glGetUniformLocation(obj_program, "u_Visible");
+      obj_pattern_param = glGetUniformLocation(obj_program, "u_Pattern");
+      obj_size_param    = glGetUniformLocation(obj_program, "u_Size");
+      obj_bg_lum_param  = glGetUniformLocation(obj_program, "u_BgLum");
+      obj_bg_color_param = glGetUniformLocation(obj_program, "u_BgColor");
+      calibration_changed = true; // new program and texture, to set again
+      base_valid  = false;
+      scene_valid = false;
       CHECKGLERROR("Obj program params");
 
-      // generate shapes
-      nothing.Initialize(obj_pos, obj_uv, Shape::NONE);
-      circle.Initialize(obj_pos, obj_uv,  Shape::CIRCLE);
-      square.Initialize(obj_pos, obj_uv,  Shape::SQUARE);
-      cross.Initialize(obj_pos, obj_uv,   Shape::CROSS);
-      maltese.Initialize(obj_pos, obj_uv, Shape::MALTESE);
-      annulus.Initialize(obj_pos, obj_uv, Shape::ANNULUS);
-      // initialize a shape to use for background, fixation target, and stimulus
-      background = square;
-      fixation   = nothing;
-      stimulus   = nothing;
+      // upload the quad shapes are drawn on
+      shape.Initialize(obj_pos, obj_shape);
+
+      resolve_scene_param = glGetUniformLocation(resolve_program, "u_Scene");
       CHECKGLERROR("OnSurfaceCreated");
     }
 
@@ -130,40 +374,46 @@ namespace ndk_opi {
     }
 
     bool OpiApp::PrepareBuffer() {
-      if(UpdateDeviceParams()) {
-        // Bind buffer
-        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
-
-        glEnable(GL_DEPTH_TEST);
-        glEnable(GL_CULL_FACE);
-        glDisable(GL_SCISSOR_TEST);
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-      }
-      return UpdateDeviceParams();
-    }
-
-    void OpiApp::OnDrawFrame(JNIEnv* env, jint bgeye, jfloat bglum, jfloatArray bgc, jint fixeye,
-                             jint fixtype, jfloat fixcx, jfloat fixcy, jfloat fixsx, jfloat fixsy,
-                             jfloat fixtheta, jfloat fixlum, jfloatArray fixc, jint steye,
-                             jint sttype, jfloat stcx, jfloat stcy, jfloat stsx, jfloat stsy,
-                             jfloat sttheta, jfloat stlum, jfloatArray stc) {
-      if(!PrepareBuffer()) return;
-      fixation = getShapeCode(fixtype); // get fixation object
-      stimulus = getShapeCode(sttype);  // get stimulus object
-      // get background, fixation, and stimulus targets
-      jfloat bgcol[3]; jfloat fixcol[3]; jfloat stcol[3];
-      env->GetFloatArrayRegion(bgc, 0, 3, bgcol);
-      env->GetFloatArrayRegion(fixc, 0, 3, fixcol);
-      env->GetFloatArrayRegion(stc, 0, 3, stcol);
-      for (int eye = 0; eye < 2; ++eye) { // Draw eyes views
-        glViewport(eye == kLeft ? 0 : screen_width / 2, 0, screen_width / 2, screen_height);
-        projection_matrix = GetMatrixFromGlArray(projection_matrices[eye]);
-        if(bgeye  == eye || bgeye  == 2) DrawBackground(bglum, bgcol);
-        if(fixeye == eye || fixeye == 2) DrawFixationTarget(fixcx, fixcy, fixsx, fixsy, fixtheta, fixlum, fixcol);
-        if(steye  == eye || steye  == 2) DrawStimulus(stcx, stcy, stsx, stsy, sttheta, stlum, stcol);
+      if(!UpdateDeviceParams()) return false;
+      glEnable(GL_DEPTH_TEST);
+      glEnable(GL_CULL_FACE);
+      glDisable(GL_SCISSOR_TEST);
+      glEnable(GL_BLEND);
+      glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+      return true;
+    }
+
+    void OpiApp::SetFrameParams(const FrameParams* params) {
+      frame_params = params;
+    }
+
+    void OpiApp::OnDrawFrame() {
+      if(frame_params == nullptr || !PrepareBuffer()) return;
+      const FrameParams& p = *frame_params;
+      // background and fixation target are kept in the base layer, and the scene is
+      // only composed again from it and the stimulus when something in it changed
+      if(!scene_valid || memcmp(&p, &drawn_params, sizeof(FrameParams)) != 0) {
+        glUseProgram(obj_program);
+        if(calibration_changed) {
+          UploadCalibration();
+          calibration_changed = false;
+        }
+        glActiveTexture(GL_TEXTURE0 + kCalibrationUnit);
+        glBindTexture(GL_TEXTURE_2D, calibration_texture);
+        glActiveTexture(GL_TEXTURE0);
+        if(!base_valid || memcmp(&p, &drawn_params, offsetof(FrameParams, steye)) != 0) {
+          glBindFramebuffer(GL_FRAMEBUFFER, base.framebuffer);
+          glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+          DrawLayer(p, true);
+          base_valid = true;
+        }
+        CopyRenderTarget(base, scene);
+        glBindFramebuffer(GL_FRAMEBUFFER, scene.framebuffer);
+        DrawLayer(p, false);
+        drawn_params = p;
+        scene_valid = true;
       }
+      ResolveScene();
       // Render
       CardboardDistortionRenderer_renderEyeToDisplay(
               distortion_renderer, /* target = */ 0, /* x = */ 0, /* y = */ 0,
@@ -171,22 +421,75 @@ namespace ndk_opi {
               &right_eye_texture_description);
     }
 
+    void OpiApp::DrawLayer(const FrameParams& p, bool base_layer) {
+      if (multiview) { // Draw both eyes views at once
+        glViewport(0, 0, screen_width / 2, screen_height);
+        view_projection_matrices[kLeft]  = GetMatrixFromGlArray(projection_matrices[kLeft]);
+        view_projection_matrices[kRight] = GetMatrixFromGlArray(projection_matrices[kRight]);
+        if (base_layer) {
+          DrawBackground(EyeMask(p.bgeye), p.bglum, p.bgcol);
+          DrawFixationTarget(EyeMask(p.fixeye), p.fixtype, p.fixcx, p.fixcy, p.fixsx, p.fixsy, p.fixtheta, p.fixlum, p.fixcol);
+        } else {
+          SetPatternBackground(p.bglum, p.bgcol);
+          DrawStimulus(EyeMask(p.steye), p.sttype, p.stcx, p.stcy, p.stsx, p.stsy, p.sttheta, p.stlum, p.stcol,
+                       p.stpattern);
+        }
+        return;
+      }
+      if (!base_layer) SetPatternBackground(p.bglum, p.bgcol);
+      for (int eye = 0; eye < 2; ++eye) { // Draw eyes views
+        glViewport(eye == kLeft ? 0 : screen_width / 2, 0, screen_width / 2, screen_height);
+        projection_matrix = GetMatrixFromGlArray(projection_matrices[eye]);
+        int mask = 1 << eye;
+        if (base_layer) {
+          if(EyeMask(p.bgeye)  & mask) DrawBackground(mask, p.bglum, p.bgcol);
+          if(EyeMask(p.fixeye) & mask) DrawFixationTarget(mask, p.fixtype, p.fixcx, p.fixcy, p.fixsx, p.fixsy, p.fixtheta, p.fixlum, p.fixcol);
+        } else {
+          if(EyeMask(p.steye)  & mask) DrawStimulus(mask, p.sttype, p.stcx, p.stcy, p.stsx, p.stsy, p.sttheta, p.stlum, p.stcol,
+                                                    p.stpattern);
+        }
+      }
+    }
+
+    void OpiApp::ResolveScene() {
+      glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+      glViewport(0, 0, screen_width, screen_height);
+      glDisable(GL_DEPTH_TEST);
+      glDisable(GL_CULL_FACE);
+      glDisable(GL_BLEND);
+      glUseProgram(resolve_program);
+      glActiveTexture(GL_TEXTURE0);
+      glBindTexture(multiview ? GL_TEXTURE_2D_ARRAY : GL_TEXTURE_2D, scene.color);
+      glUniform1i(resolve_scene_param, 0);
+      glDrawArrays(GL_TRIANGLES, 0, 3);
+    }
+
+    int OpiApp::GetLuminanceLevels() const {
+      return luminance_levels.load();
+    }
+
     void OpiApp::OnPause() {
     }
 
     void OpiApp::OnResume() {
-      // Parameters may have changed.
-      device_params_changed = true;
-
       // Check for device parameters existence in external storage. If they're
       // missing, we must scan a Cardboard QR code and save the obtained parameters.
+      // They are read here, once, so the first frame after resuming does not wait
+      // on storage, and the rendering thread picks them up.
       uint8_t* buffer;
       int size;
       CardboardQrCode_getSavedDeviceParams(&buffer, &size);
+      {
+        std::lock_guard<std::mutex> lock(device_params_mutex);
+        pending_device_params.assign(buffer, buffer + size);
+        device_params_pending = true;
+      }
+      CardboardQrCode_destroy(buffer);
+      // Parameters may have changed.
+      device_params_changed = true;
       if (size == 0) {
         SwitchViewer();
       }
-      CardboardQrCode_destroy(buffer);
     }
 
     void OpiApp::SwitchViewer() { // NOLINT(readability-convert-member-functions-to-static)
@@ -199,25 +502,28 @@ namespace ndk_opi {
         return true;
       }
 
-      // Get saved device parameters
-      uint8_t* buffer;
-      int size;
-      CardboardQrCode_getSavedDeviceParams(&buffer, &size);
-
       // If there are no parameters saved yet, returns false.
-      if (size == 0) {
+      if (device_params_changed.exchange(false) && !TakeDeviceParams()) {
+        return false;
+      }
+      if (device_params.empty()) {
         return false;
       }
 
-      CardboardLensDistortion_destroy(lens_distortion);
-      lens_distortion = CardboardLensDistortion_create(buffer, size, screen_width, screen_height);
-
-      CardboardQrCode_destroy(buffer);
-
-      GlSetup();
+      // Lens distortion and meshes are only built once for each device parameters
+      // and screen size, so resuming and rotating back reuse them
+      CardboardLensDistortion* distortion = GetLensDistortion();
+      if (distortion == lens_distortion && !screen_params_changed) {
+        return true;
+      }
+      lens_distortion = distortion;
 
-      CardboardDistortionRenderer_destroy(distortion_renderer);
-      distortion_renderer = CardboardOpenGlEs2DistortionRenderer_create();
+      // a new screen size comes with a new surface, and maybe a new GL context
+      if (screen_params_changed) {
+        GlSetup();
+        CardboardDistortionRenderer_destroy(distortion_renderer);
+        distortion_renderer = CardboardOpenGlEs2DistortionRenderer_create();
+      }
 
       // Setup mesh for left and right eye
       CardboardMesh left_mesh;
@@ -234,7 +540,9 @@ namespace ndk_opi {
       CardboardLensDistortion_getProjectionMatrix(lens_distortion, kRight, kZNear, kZFar, projection_matrices[1]);
 
       screen_params_changed = false;
-      device_params_changed = false;
+      // projections may differ, so the scene has to be drawn again
+      base_valid  = false;
+      scene_valid = false;
 
       CHECKGLERROR("UpdateDeviceParams");
 
@@ -243,6 +551,47 @@ namespace ndk_opi {
       return true;
     }
 
+    bool OpiApp::TakeDeviceParams() {
+      {
+        std::lock_guard<std::mutex> lock(device_params_mutex);
+        if (device_params_pending) {
+          device_params.swap(pending_device_params);
+          pending_device_params.clear();
+          device_params_pending = false;
+          device_params_hash = cardboard::Fnv1aHash(device_params.data(), device_params.size());
+          return !device_params.empty();
+        }
+      }
+      // not resumed yet, so read them here
+      uint8_t* buffer;
+      int size;
+      CardboardQrCode_getSavedDeviceParams(&buffer, &size);
+      device_params.assign(buffer, buffer + size);
+      CardboardQrCode_destroy(buffer);
+      device_params_hash = cardboard::Fnv1aHash(device_params.data(), device_params.size());
+      return size != 0;
+    }
+
+    CardboardLensDistortion* OpiApp::GetLensDistortion() {
+      for (auto it = distortion_cache.begin(); it != distortion_cache.end(); ++it) {
+        if (it->params_hash == device_params_hash && it->width == screen_width && it->height == screen_height) {
+          DistortionCacheEntry entry = *it;
+          distortion_cache.erase(it);
+          distortion_cache.push_back(entry);
+          return entry.lens_distortion;
+        }
+      }
+      // evict the least recently used, which is never the one in use
+      if (distortion_cache.size() == kDistortionCacheSize) {
+        CardboardLensDistortion_destroy(distortion_cache.front().lens_distortion);
+        distortion_cache.erase(distortion_cache.begin());
+      }
+      CardboardLensDistortion* distortion = CardboardLensDistortion_create(
+              device_params.data(), static_cast<int>(device_params.size()), screen_width, screen_height);
+      distortion_cache.push_back({device_params_hash, screen_width, screen_height, distortion});
+      return distortion;
+    }
+
     void OpiApp::GlSetup() {
       LOGD("GL SETUP");
 
@@ -259,6 +608,7 @@ namespace ndk_opi {
       glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
 
       glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, screen_width, screen_height, 0, GL_RGB, GL_UNSIGNED_BYTE, nullptr);
+      CHECKGLERROR("Create eye texture");
 
       left_eye_texture_description.texture = texture;
       left_eye_texture_description.left_u = 0;
@@ -272,28 +622,108 @@ namespace ndk_opi {
       right_eye_texture_description.top_v = 1;
       right_eye_texture_description.bottom_v = 0;
 
-      // Generate depth buffer to perform depth test.
-      glGenRenderbuffers(1, &depthRenderBuffer);
-      glBindRenderbuffer(GL_RENDERBUFFER, depthRenderBuffer);
-      glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, screen_width, screen_height);
-      CHECKGLERROR("Create Render buffer");
-
-      // Create render target.
+      // Create render target the distortion renderer reads from.
       glGenFramebuffers(1, &framebuffer);
       glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
       glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
-      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthRenderBuffer);
+
+      // Create the targets shapes are drawn into, resolved into the one above.
+      luminance_levels = CreateSceneTarget();
+      base_valid  = false;
+      scene_valid = false;
+      LOGD("Scene target resolves %d luminance levels", luminance_levels.load());
 
       CHECKGLERROR("GlSetup");
     }
 
+    int OpiApp::CreateSceneTarget() {
+      for (const SceneFormat& f : kSceneFormats) {
+        if (f.extension != nullptr && !HasExtension(f.extension)) continue;
+        if (CreateRenderTarget(&scene, f.internal_format, f.format, f.type) &&
+            CreateRenderTarget(&base, f.internal_format, f.format, f.type)) {
+          return f.levels;
+        }
+        DeleteRenderTarget(&scene);
+        DeleteRenderTarget(&base);
+      }
+      LOGE("No colour format can be rendered to for the scene");
+      return 256;
+    }
+
+    bool OpiApp::CreateRenderTarget(RenderTarget* target, GLint internal_format, GLenum format, GLenum type) {
+      glGenFramebuffers(1, &target->framebuffer);
+      glBindFramebuffer(GL_FRAMEBUFFER, target->framebuffer);
+      glGenTextures(1, &target->color);
+      if (multiview) { // one layer per eye, for colour and depth
+        int width = screen_width / 2;
+        glBindTexture(GL_TEXTURE_2D_ARRAY, target->color);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, internal_format, width, screen_height, 2, 0, format, type, nullptr);
+        glGenTextures(1, &target->depth);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, target->depth);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_DEPTH_COMPONENT16, width, screen_height, 2, 0,
+                     GL_DEPTH_COMPONENT, GL_UNSIGNED_SHORT, nullptr);
+        framebuffer_texture_multiview(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, target->color, 0, 0, 2);
+        framebuffer_texture_multiview(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, target->depth, 0, 0, 2);
+        // multiview framebuffers cannot be blitted, so each layer gets one of its own
+        for (int layer = 0; layer < 2; ++layer) {
+          glGenFramebuffers(1, &target->layers[layer]);
+          glBindFramebuffer(GL_FRAMEBUFFER, target->layers[layer]);
+          glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, target->color, 0, layer);
+          glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, target->depth, 0, layer);
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, target->framebuffer);
+      } else {
+        glBindTexture(GL_TEXTURE_2D, target->color);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexImage2D(GL_TEXTURE_2D, 0, internal_format, screen_width, screen_height, 0, format, type, nullptr);
+        glGenRenderbuffers(1, &target->depth);
+        glBindRenderbuffer(GL_RENDERBUFFER, target->depth);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, screen_width, screen_height);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, target->color, 0);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, target->depth);
+      }
+      return glGetError() == GL_NO_ERROR &&
+             glCheckFramebufferStatus(GL_FRAMEBUFFER) == GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    void OpiApp::DeleteRenderTarget(RenderTarget* target) {
+      glDeleteFramebuffers(2, target->layers);
+      glDeleteFramebuffers(1, &target->framebuffer);
+      glDeleteTextures(1, &target->color);
+      if (multiview) {
+        glDeleteTextures(1, &target->depth);
+      } else {
+        glDeleteRenderbuffers(1, &target->depth);
+      }
+      *target = RenderTarget();
+    }
+
+    void OpiApp::CopyRenderTarget(const RenderTarget& from, const RenderTarget& to) {
+      if (multiview) {
+        for (int layer = 0; layer < 2; ++layer) {
+          glBindFramebuffer(GL_READ_FRAMEBUFFER, from.layers[layer]);
+          glBindFramebuffer(GL_DRAW_FRAMEBUFFER, to.layers[layer]);
+          glBlitFramebuffer(0, 0, screen_width / 2, screen_height, 0, 0, screen_width / 2, screen_height,
+                            GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+        }
+      } else {
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, from.framebuffer);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, to.framebuffer);
+        glBlitFramebuffer(0, 0, screen_width, screen_height, 0, 0, screen_width, screen_height,
+                          GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+      }
+    }
+
     void OpiApp::GlTeardown() {
-      glDeleteRenderbuffers(1, &depthRenderBuffer);
-      depthRenderBuffer = 0;
       glDeleteFramebuffers(1, &framebuffer);
       framebuffer = 0;
       glDeleteTextures(1, &texture);
       texture = 0;
+      DeleteRenderTarget(&scene);
+      DeleteRenderTarget(&base);
 
       CHECKGLERROR("GlTeardown");
     }
@@ -316,61 +746,85 @@ namespace ndk_opi {
       return jfov;
     }
 
-    void OpiApp::DrawBackground(float lum, float col[]) {
-      glUseProgram(obj_program);
+    void OpiApp::DrawBackground(int eyes, float lum, const float col[]) {
       float sx = degOfViewToLength(kBackgroundDistance, std::max(fov[0], fov[1]));
       float sy = degOfViewToLength(kBackgroundDistance, std::max(fov[0], fov[1]));
       model_background = GetAffineMatrix(sx, sy, 0, {0, 0, kBackgroundDistance});
-      modelview_background = projection_matrix * model_background;
-      std::array<float, 16> position = modelview_background.ToGlArray();
-      glUniformMatrix4fv(0, 1, GL_FALSE, position.data());
-      background.Ready(lum, col);
-      background.Draw();
+      DrawShape(Shape::SQUARE, model_background, eyes, lum, col);
       CHECKGLERROR("DrawBackground");
     }
 
-    void OpiApp:: DrawFixationTarget(float cx, float cy, float sx, float sy, float theta,
-                                     float lum, float col[]) {
-      glUseProgram(obj_program);
+    void OpiApp:: DrawFixationTarget(int eyes, int type, float cx, float cy, float sx, float sy, float theta,
+                                     float lum, const float col[]) {
       sx = degOfViewToLength(kFixationTargetDistance, DegreesToRadians(sx));
       sy = degOfViewToLength(kFixationTargetDistance, DegreesToRadians(sy));
       cx = degOfViewToLength(kFixationTargetDistance, DegreesToRadians(cx));
       cy = degOfViewToLength(kFixationTargetDistance, DegreesToRadians(cy));
       model_fixation_target = GetAffineMatrix(sx, sy, DegreesToRadians(theta), {cx, cy, kFixationTargetDistance});
-      modelview_fixation_target = projection_matrix * model_fixation_target;
-      std::array<float, 16> position = modelview_fixation_target.ToGlArray();
-      glUniformMatrix4fv(0, 1, GL_FALSE, position.data());
-      fixation.Ready(lum, col);
-      fixation.Draw();
+      DrawShape(type, model_fixation_target, eyes, lum, col);
       CHECKGLERROR("DrawFixationTarget");
     }
 
-    void OpiApp::DrawStimulus(float cx, float cy,  float sx, float sy, float theta,
-                              float lum, float col[]) {
-      glUseProgram(obj_program);
+    void OpiApp::DrawStimulus(int eyes, int type, float cx, float cy,  float sx, float sy, float theta,
+                              float lum, const float col[], const float pattern[]) {
+      glUniform4fv(obj_pattern_param, 1, pattern);
+      glUniform2f(obj_size_param, sx, sy);
       sx = degOfViewToLength(kStimulusDistance, DegreesToRadians(sx));
       sy = degOfViewToLength(kStimulusDistance, DegreesToRadians(sy));
       cx = degOfViewToLength(kStimulusDistance, DegreesToRadians(cx));
       cy = degOfViewToLength(kStimulusDistance, DegreesToRadians(cy));
-      model_stimulus     = GetAffineMatrix(sx, sy, DegreesToRadians(theta), {cx, cy, kStimulusDistance});
-      modelview_stimulus = projection_matrix * model_stimulus;
-      std::array<float, 16> position = modelview_stimulus.ToGlArray();
-      glUniformMatrix4fv(0, 1, GL_FALSE, position.data());
-      stimulus.Ready(lum, col);
-      stimulus.Draw();
+      model_stimulus = GetAffineMatrix(sx, sy, DegreesToRadians(theta), {cx, cy, kStimulusDistance});
+      DrawShape(type, model_stimulus, eyes, lum, col);
       CHECKGLERROR("DrawStimulus");
     }
 
-    Shape OpiApp::getShapeCode(int type) {
-      switch(type) { // defaults to circle
-        case Shape::CIRCLE:  return circle;
-        case Shape::SQUARE:  return square;
-        case Shape::CROSS:   return cross;
-        case Shape::MALTESE: return maltese;
-        case Shape::ANNULUS: return annulus;
-        default:             return nothing;
+    void OpiApp::DrawShape(int type, const Matrix4x4& model, int eyes,
+                           float lum, const float col[]) {
+      if (multiview) {
+        std::array<float, 32> positions{};
+        for (int eye = 0; eye < 2; ++eye) {
+          std::array<float, 16> position = (view_projection_matrices[eye] * model).ToGlArray();
+          std::copy(position.begin(), position.end(), positions.begin() + 16 * eye);
+        }
+        glUniformMatrix4fv(obj_mvp_param, 2, GL_FALSE, positions.data());
+        glUniform2i(obj_visible_param, eyes & 1, (eyes >> 1) & 1);
+      } else {
+        std::array<float, 16> position = (projection_matrix * model).ToGlArray();
+        glUniformMatrix4fv(obj_mvp_param, 1, GL_FALSE, position.data());
       }
+      SetColor(lum, col);
+      shape.Draw(type);
     }
+
+    void OpiApp::SetColor(float lum, const float col[]) const {
+      glUniform1f(obj_lum_param, lum);
+      glUniform3f(obj_color_param, col[0], col[1], col[2]);
+    }
+
+    void OpiApp::SetPatternBackground(float lum, const float col[]) const {
+      glUniform1f(obj_bg_lum_param, lum);
+      glUniform3f(obj_bg_color_param, col[0], col[1], col[2]);
+    }
+
+    void OpiApp::SetCalibration(const float table[], int size) {
+      calibration_table.assign(table, table + size);
+      calibration_changed = true;
+      base_valid  = false; // luminances map to other output levels now
+      scene_valid = false;
+    }
+
+    void OpiApp::UploadCalibration() {
+      // one float texel per measured level, read with texelFetch only
+      if (calibration_texture == 0) glGenTextures(1, &calibration_texture);
+      glBindTexture(GL_TEXTURE_2D, calibration_texture);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+      glTexImage2D(GL_TEXTURE_2D, 0, GL_R32F, static_cast<GLsizei>(calibration_table.size()), 1, 0,
+                   GL_RED, GL_FLOAT, calibration_table.data());
+      glUniform1i(obj_calibration_param, kCalibrationUnit);
+      CHECKGLERROR("Upload calibration");
+    }
+
     float OpiApp::RadiansToDegrees(float angle) {
       return 180 / float(M_PI) * angle;
     }
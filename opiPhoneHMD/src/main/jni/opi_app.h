@@ -19,17 +19,66 @@
 
 #include <jni.h>
 
+#include <array>
+#include <atomic>
+#include <cstdint>
 #include <memory>
+#include <mutex>
 #include <string>
 #include <thread>
 #include <vector>
 
-#include <GLES2/gl2.h>
+#include <GLES3/gl3.h>
+#include <GLES2/gl2ext.h>
 #include "cardboard.h"
 #include "util.h"
 
 namespace ndk_opi {
 
+/**
+ * Draw parameters for a frame. Java writes them into a direct ByteBuffer with
+ * this layout, in native byte order, and hands it over once (see Renderer.java).
+ */
+    struct FrameParams {
+        int32_t bgeye;
+        float   bglum;
+        float   bgcol[4];
+        int32_t fixeye;
+        int32_t fixtype;
+        float   fixcx, fixcy, fixsx, fixsy, fixtheta;
+        float   fixlum;
+        float   fixcol[4];
+        int32_t steye;
+        int32_t sttype;
+        float   stcx, stcy, stsx, stsy, sttheta;
+        float   stlum;
+        float   stcol[4];
+        float   stpattern[4];  // spatial frequency, phase, sigma and contrast
+    };
+    static_assert(sizeof(FrameParams) == 34 * 4, "FrameParams must match Renderer.FRAME_BYTES");
+
+/**
+ * Offscreen colour and depth target. With multiview the attachments are two-layer
+ * texture arrays, one layer per eye, otherwise a texture and a renderbuffer.
+ */
+    struct RenderTarget {
+        GLuint framebuffer = 0;
+        GLuint color = 0;
+        GLuint depth = 0;
+        GLuint layers[2] = {0, 0};  // framebuffers on each layer with multiview, to blit
+    };
+
+/**
+ * Lens distortion, with the meshes it holds, built for some device parameters
+ * and screen size.
+ */
+    struct DistortionCacheEntry {
+        uint64_t params_hash;
+        int width;
+        int height;
+        CardboardLensDistortion* lens_distortion;
+    };
+
 /**
  * This is a sample opi for the Cardboard SDK. It loads a simple environment and
  * objects that you can click on.
@@ -61,13 +110,16 @@ namespace ndk_opi {
         void SetScreenParams(int width, int height);
 
         /**
-         * Draws the frame
+         * Sets where the draw parameters of each frame are read from.
+         *
+         * @param params Address of the direct buffer shared with Java
          */
-        void OnDrawFrame(JNIEnv* env, jint bgeye, jfloat bglum, jfloatArray bgc, jint fixeye,
-                         jint fixtype, jfloat fixcx, jfloat fixcy, jfloat fixsx, jfloat fixsy,
-                         jfloat fixtheta, jfloat fixlum, jfloatArray fixc, jint steye,
-                         jint sttype, jfloat stcx, jfloat stcy, jfloat stsx, jfloat stsy,
-                         jfloat sttheta, jfloat stlum, jfloatArray stc);
+        void SetFrameParams(const FrameParams* params);
+
+        /**
+         * Draws the frame from the current frame parameters
+         */
+        void OnDrawFrame();
 
         /**
          * Pauses head tracking.
@@ -75,7 +127,8 @@ namespace ndk_opi {
         void OnPause();
 
         /**
-         * Resumes head tracking.
+         * Resumes head tracking. Reads the saved device parameters and hands
+         * them to the rendering thread.
          */
         void OnResume();
 
@@ -93,6 +146,29 @@ namespace ndk_opi {
          */
         jfloatArray returnFieldOfView(JNIEnv* env);
 
+        /**
+         * Sets the calibration table. Should be called on the rendering thread;
+         * it is applied from the next frame drawn.
+         *
+         * @param table Luminance measured at evenly spaced output levels from 0
+         *              to 1, not decreasing
+         * @param size Number of levels, from 2 to kMaxCalibrationSize
+         */
+        void SetCalibration(const float table[], int size);
+
+        /**
+         * Returns the number of evenly spaced luminance levels between black and
+         * full output, both included, that the scene target resolves. The 8-bit
+         * display reproduces them only on average over the pixels of an area, as
+         * the dither is spatial. Safe to call from any thread
+         */
+        int GetLuminanceLevels() const;
+
+        /**
+         * Largest calibration table, as Calibration.MAX_LEVELS in Java.
+         */
+        static constexpr int kMaxCalibrationSize = 1024;
+
     private:
         /**
          * Default near clip plane z-axis coordinate.
@@ -111,6 +187,20 @@ namespace ndk_opi {
          */
         bool UpdateDeviceParams();
 
+        /**
+         * Takes the device parameters handed over by OnResume, or reads them
+         * from storage if there are none yet.
+         *
+         * @return false if there are no device parameters saved.
+         */
+        bool TakeDeviceParams();
+
+        /**
+         * Returns the lens distortion for the current device parameters and
+         * screen size, from the cache or built and added to it.
+         */
+        CardboardLensDistortion* GetLensDistortion();
+
         /**
          * Initializes GL environment.
          */
@@ -121,32 +211,92 @@ namespace ndk_opi {
          */
         void GlTeardown();
 
+        /**
+         * Creates the offscreen scene target with the most precise colour
+         * format that can be rendered to.
+         *
+         * @return Number of luminance levels the target resolves
+         */
+        int CreateSceneTarget();
+
+        /**
+         * Creates a render target of the size of the screen, split in layers
+         * with multiview.
+         *
+         * @return true if the target can be rendered to
+         */
+        bool CreateRenderTarget(RenderTarget* target, GLint internal_format, GLenum format, GLenum type);
+
+        /**
+         * Deletes a render target.
+         */
+        void DeleteRenderTarget(RenderTarget* target);
+
+        /**
+         * Copies colour and depth of a render target into another of the same kind.
+         */
+        void CopyRenderTarget(const RenderTarget& from, const RenderTarget& to);
+
         /**
          * This should be called on the rendering thread
          */
         bool PrepareBuffer();
 
+        /**
+         * Draws the background and fixation target for the base layer, or the
+         * stimulus, into both eye views of the bound framebuffer.
+         */
+        void DrawLayer(const FrameParams& p, bool base_layer);
+
+        /**
+         * Dithers the scene target down to the 8-bit eye texture
+         */
+        void ResolveScene();
+
+        /**
+         * Loads the calibration table into its texture. Needs the obj program in use
+         */
+        void UploadCalibration();
+
         /**
          * Draws the background.
          */
-        void DrawBackground(float lum, float col[]);
+        void DrawBackground(int eyes, float lum, const float col[]);
 
         /**
          * Draws the fixation target.
          */
-        void DrawFixationTarget(float cx, float cy, float sx, float sy, float theta,
-                                float lum, float col[]);
+        void DrawFixationTarget(int eyes, int type, float cx, float cy, float sx, float sy, float theta,
+                                float lum, const float col[]);
 
         /**
          * Draws the stimulus.
          */
-        void DrawStimulus(float cx, float cy, float sx, float sy, float theta,
-                          float lum, float col[]);
+        void DrawStimulus(int eyes, int type, float cx, float cy, float sx, float sy, float theta,
+                          float lum, const float col[], const float pattern[]);
 
         /**
-         * Gets shape code
-        */
-        Shape getShapeCode(int type);
+         * Draws a shape into the current eye view, or with multiview into the
+         * views in eyes, bit 0 for the left eye and bit 1 for the right.
+         */
+        void DrawShape(int type, const Matrix4x4& model, int eyes,
+                       float lum, const float col[]);
+
+        /**
+         * Sets the luminance and colour of the next shapes drawn
+         *
+         * @param lum Luminance, in the units of the calibration
+         * @param col Colour
+         */
+        void SetColor(float lum, const float col[]) const;
+
+        /**
+         * Sets the background that patterned stimuli fade into
+         *
+         * @param lum Luminance, in the units of the calibration
+         * @param col Colour
+         */
+        void SetPatternBackground(float lum, const float col[]) const;
 
         /**
          * Converts from degrees to radians
@@ -170,32 +320,56 @@ namespace ndk_opi {
         CardboardEyeTextureDescription right_eye_texture_description;
 
         bool screen_params_changed;
-        bool device_params_changed;
+        std::atomic<bool> device_params_changed;
         int screen_width;
         int screen_height;
 
+        std::mutex device_params_mutex;
+        std::vector<uint8_t> pending_device_params;  // from OnResume, guarded by the mutex
+        bool device_params_pending;                   // guarded by device_params_mutex
+        std::vector<uint8_t> device_params;          // in use, on the rendering thread
+        uint64_t device_params_hash;
+        static constexpr size_t kDistortionCacheSize = 4;
+        std::vector<DistortionCacheEntry> distortion_cache;  // most recently used last
+
         float projection_matrices[2][16]{};
         float eye_matrices[2][16]{};
 
-        GLuint depthRenderBuffer;  // depth buffer
         GLuint framebuffer;        // framebuffer object
         GLuint texture;            // distortion texture
+        RenderTarget scene;        // high precision target shapes are drawn into
+        RenderTarget base;         // background and fixation target, copied into scene
+        bool base_valid;           // base holds drawn_params up to the stimulus
+        bool scene_valid;          // scene holds drawn_params
+        FrameParams drawn_params{};
 
-        GLuint obj_program;
+        bool multiview;            // both eyes drawn in one pass, as layers of the scene target
+        PFNGLFRAMEBUFFERTEXTUREMULTIVIEWOVRPROC framebuffer_texture_multiview;
 
-        Matrix4x4 modelview_background{};
-        Matrix4x4 modelview_fixation_target{};
-        Matrix4x4 modelview_stimulus{};
-
-        Shape nothing;
-        Shape circle;
-        Shape square;
-        Shape cross;
-        Shape maltese;
-        Shape annulus;
-        Shape background;
-        Shape fixation;
-        Shape stimulus;
+        GLuint obj_program;
+        GLint obj_mvp_param;
+        GLint obj_color_param;
+        GLint obj_lum_param;
+        GLint obj_calibration_param;
+        GLint obj_visible_param;
+        GLint obj_pattern_param;
+        GLint obj_size_param;
+        GLint obj_bg_lum_param;
+        GLint obj_bg_color_param;
+
+        // the fragment shader inverts the measured table, kept in a texture
+        static constexpr int kCalibrationUnit = 1;
+        std::vector<float> calibration_table;
+        GLuint calibration_texture;
+        bool calibration_changed;
+
+        GLuint resolve_program;
+        GLint resolve_scene_param;
+        std::atomic<int> luminance_levels;
+
+        Shape shape;
+
+        const FrameParams* frame_params;
 
         float fov[4] = {45, 45, 45, 45};
     };
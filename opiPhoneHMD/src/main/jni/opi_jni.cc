@@ -17,6 +17,7 @@
 #include <android/log.h>
 #include <jni.h>
 
+#include <algorithm>
 #include <memory>
 
 #include "opi_app.h"
@@ -87,6 +88,11 @@ JNI_METHOD_OPICONNECTION(jfloatArray, nativeGetFieldOfView)
     return fov;
 }
 
+JNI_METHOD_OPICONNECTION(jint, nativeGetLuminanceLevels)
+(JNIEnv* /*env*/, jobject /*obj*/, jlong native_app) {
+    return native(native_app)->GetLuminanceLevels();
+}
+
 // Native methods for Renderer
 JNI_METHOD_OPIRENDERER(void, nativeOnSurfaceCreated)
 (JNIEnv* /*env*/, jobject /*obj*/, jlong native_app) {
@@ -98,15 +104,23 @@ JNI_METHOD_OPIRENDERER(void, nativeSetScreenParams)
     native(native_app)->SetScreenParams(width, height);
 }
 
+JNI_METHOD_OPIRENDERER(void, nativeSetFrameBuffer)
+(JNIEnv* env, jobject /*obj*/, jlong native_app, jobject frame) {
+    native(native_app)->SetFrameParams(
+            static_cast<ndk_opi::FrameParams*>(env->GetDirectBufferAddress(frame)));
+}
+
+JNI_METHOD_OPIRENDERER(void, nativeSetCalibration)
+(JNIEnv* env, jobject /*obj*/, jlong native_app, jfloatArray table) {
+    jsize size = std::min(env->GetArrayLength(table), ndk_opi::OpiApp::kMaxCalibrationSize);
+    float values[ndk_opi::OpiApp::kMaxCalibrationSize];
+    env->GetFloatArrayRegion(table, 0, size, values);
+    native(native_app)->SetCalibration(values, size);
+}
+
 JNI_METHOD_OPIRENDERER(void, nativeOnDrawFrame)
-(JNIEnv* env, jobject /*obj*/, jlong native_app, jint bgeye, jfloat bglum,
- jfloatArray bgcol, jint fixeye, jint fixtype, jfloat fixcx, jfloat fixcy, jfloat fixsx,
- jfloat fixsy, jfloat fixtheta, jfloat fixlum, jfloatArray fixcol, jint steye,
- jint sttype, jfloat stcx, jfloat stcy, jfloat stsx, jfloat stsy,
- jfloat sttheta, jfloat stlum, jfloatArray stcol) {
-    native(native_app)->OnDrawFrame(env, bgeye, bglum, bgcol, fixeye, fixtype, fixcx, fixcy,
-                                    fixsx, fixsy, fixtheta, fixlum, fixcol, steye, sttype, stcx,
-                                    stcy, stsx, stsy, sttheta, stlum, stcol);
+(JNIEnv* /*env*/, jobject /*obj*/, jlong native_app) {
+    native(native_app)->OnDrawFrame();
 }
 
 }  // extern "C"
\ No newline at end of file
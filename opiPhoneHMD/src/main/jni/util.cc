@@ -29,131 +29,6 @@
 
 namespace ndk_opi {
 
-    void None(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        // vertices
-        addVertex(0, 0, 0, v);
-        addVertex(0, 0, 0, v);
-        addVertex(0, 0, 0, v);
-        // indices
-        ind->push_back(0);
-        ind->push_back(1);
-        ind->push_back(2);
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void Circle(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        int n = 500;
-        // vertices and indices
-        addVertex(0, 0, 0, v);
-        ind->push_back(0);
-        for (int i = 0; i < n + 1; i++) {
-            float theta = 2.0f * float(M_PI) * float(i) / float(n);
-            addVertex(cosf(theta), sinf(theta), 0, v);
-            ind->push_back(i + 1);
-        }
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void Square(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        // vertices
-        addVertex(1, 1, 0, v);
-        addVertex(-1, 1, 0, v);
-        addVertex(-1, -1, 0, v);
-        addVertex(1, -1, 0, v);
-        // indices
-        ind->push_back(0);
-        ind->push_back(1);
-        ind->push_back(2);
-        ind->push_back(2);
-        ind->push_back(3);
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void Cross(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        // vertices
-        addVertex(1.00, 0.10, 0, v);
-        addVertex(-1.00, 0.10, 0, v);
-        addVertex(-1.00, -0.10, 0, v);
-        addVertex(1.00, -0.10, 0, v);
-        addVertex(-0.10, -1.00, 0, v);
-        addVertex(0.10, -1.00, 0, v);
-        addVertex(0.10, 1.00, 0, v);
-        addVertex(-0.10, 1.00, 0, v);
-        // indices
-        for (int i = 0; i < 2; i++) {
-            ind->push_back(4 * i);
-            ind->push_back(4 * i + 1);
-            ind->push_back(4 * i + 2);
-            ind->push_back(4 * i);
-            ind->push_back(4 * i + 2);
-            ind->push_back(4 * i + 3);
-        }
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void
-    MalteseCross(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        // vertices
-        addVertex(1.00, 0.20, 0, v);
-        addVertex(0.00, 0.02, 0, v);
-        addVertex(0.00, -0.02, 0, v);
-        addVertex(1.00, -0.20, 0, v);
-        addVertex(-0.02, 0.00, 0, v);
-        addVertex(0.02, 0.00, 0, v);
-        addVertex(0.20, 1.00, 0, v);
-        addVertex(-0.20, 1.00, 0, v);
-        addVertex(0.20, -1.00, 0, v);
-        addVertex(0.02, 0.00, 0, v);
-        addVertex(-0.02, 0.00, 0, v);
-        addVertex(-0.20, -1.00, 0, v);
-        addVertex(-1.00, 0.20, 0, v);
-        addVertex(-1.00, -0.20, 0, v);
-        addVertex(0.00, -0.02, 0, v);
-        addVertex(0.00, 0.02, 0, v);
-        // indices
-        for (int i = 0; i < 8; i++) {
-            ind->push_back(4 * i);
-            ind->push_back(4 * i + 1);
-            ind->push_back(4 * i + 2);
-            ind->push_back(4 * i);
-            ind->push_back(4 * i + 2);
-            ind->push_back(4 * i + 3);
-        }
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void Annulus(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind) {
-        int n = 500;
-        float r = 0.6; // ratio between outer and inner circle
-        // vertices and indices
-        for (int i = 0; i < n + 1; i++) {
-            float theta1 = 2.0f * float(M_PI) * float(i) / float(n);
-            float theta2 = 2.0f * float(M_PI) * float(i + 0.5) / float(n);
-            addVertex(r * cosf(theta1), r * sinf(theta1), 0, v);
-            addVertex(cosf(theta2), sinf(theta2), 0, v);
-            ind->push_back(2 * i);
-            ind->push_back(2 * i + 1);
-        }
-        // UV
-        addUv(0, 0, vt); // UV attribute not used at the moment
-    }
-
-    void addVertex(float v1, float v2, float v3, std::vector<GLfloat> *v) {
-        v->push_back(v1);
-        v->push_back(v2);
-        v->push_back(v3);
-    }
-
-    void addUv(float v1, float v2, std::vector<GLfloat> *vt) {
-        vt->push_back(v1);
-        vt->push_back(v2);
-    }
-
     Matrix4x4 Matrix4x4::operator*(const Matrix4x4 &right) {
         Matrix4x4 result = right;
         for (int i = 0; i < 4; ++i) {
@@ -233,64 +108,40 @@ namespace ndk_opi {
         }
     }
 
-    void Shape::Initialize(GLuint pos_a, GLuint uv_a, int type) {
-        position_attrib = pos_a;
-        uv_attrib = uv_a;
-        switch(type) { // defaults to circle
-            case CIRCLE:
-                native = GL_TRIANGLE_FAN;
-                Circle(&vertices, &uv, &indices);
-                break;
-            case SQUARE:
-                native = GL_TRIANGLE_FAN;
-                Square(&vertices, &uv, &indices);
-                break;
-            case CROSS:
-                native = GL_TRIANGLES;
-                Cross(&vertices, &uv, &indices);
-                break;
-            case MALTESE:
-                native = GL_TRIANGLES;
-                MalteseCross(&vertices, &uv, &indices);
-                break;
-            case ANNULUS:
-                native = GL_TRIANGLE_STRIP;
-                Annulus(&vertices, &uv, &indices);
-                break;
-            default:
-                native = GL_TRIANGLES;
-                None(&vertices, &uv, &indices);
-        }
-        glGenTextures(1, &texture_id);
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, texture_id);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-    }
-
-    void Shape::Ready(float luminance, const float color[]) const {
-        glBindTexture(GL_TEXTURE_2D, texture_id);
-        auto *texData = new unsigned char[3 * sizeof(unsigned char)];
-        texData[0] = (unsigned char) (255.0f * luminance * color[0]);
-        texData[1] = (unsigned char) (255.0f * luminance * color[1]);
-        texData[2] = (unsigned char) (255.0f * luminance * color[2]);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, 1, 1, 0, GL_RGB, GL_UNSIGNED_BYTE, texData);
-        delete[] texData;
-    }
-
-    void Shape::Draw() const {
-        glEnableVertexAttribArray(position_attrib);
-        glVertexAttribPointer(position_attrib, 3, GL_FLOAT, false, 0, vertices.data());
-        glEnableVertexAttribArray(uv_attrib);
-        glVertexAttribPointer(uv_attrib, 2, GL_FLOAT, false, 0, uv.data());
-        glDrawElements(native, (GLint) indices.size(), GL_UNSIGNED_SHORT, indices.data());
+    void Shape::Initialize(GLuint pos_a, GLint shape_u) {
+        const GLfloat vertices[] = {-EXTENT, -EXTENT, 0,
+                                    EXTENT,  -EXTENT, 0,
+                                    -EXTENT, EXTENT,  0,
+                                    EXTENT,  EXTENT,  0};
+        shape_uniform = shape_u;
+        // upload the quad once and capture the attribute layout in a vertex array,
+        // so that drawing moves no geometry. Names from a lost context are gone
+        // with it, so there is nothing to free here
+        glGenVertexArrays(1, &vertex_array);
+        glGenBuffers(1, &vertex_buffer);
+        glBindVertexArray(vertex_array);
+        glBindBuffer(GL_ARRAY_BUFFER, vertex_buffer);
+        glBufferData(GL_ARRAY_BUFFER, sizeof(vertices), vertices, GL_STATIC_DRAW);
+        glEnableVertexAttribArray(pos_a);
+        glVertexAttribPointer(pos_a, 3, GL_FLOAT, false, 0, nullptr);
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    void Shape::Draw(int type) const {
+        if (type == NONE) return;
+        glUniform1i(shape_uniform, type);
+        glBindVertexArray(vertex_array);
+        glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+        glBindVertexArray(0);
     }
 
     Shape::~Shape() {
-        if (texture_id != 0) {
-            glDeleteTextures(1, &texture_id);
+        if (vertex_array != 0) {
+            glDeleteVertexArrays(1, &vertex_array);
+        }
+        if (vertex_buffer != 0) {
+            glDeleteBuffers(1, &vertex_buffer);
         }
     }  // namespace ndk_opi
 }
\ No newline at end of file
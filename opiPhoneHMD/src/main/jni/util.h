@@ -22,7 +22,7 @@
 #include <array>
 #include <vector>
 
-#include <GLES2/gl2.h>
+#include <GLES3/gl3.h>
 
 #include <android/asset_manager.h>
 
@@ -73,22 +73,6 @@ namespace ndk_opi {
  */
     void CheckGlError(const char* file, int line, const char* label);
 
-    void None(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void Circle(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void Square(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void Cross(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void MalteseCross(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void Annulus(std::vector<GLfloat> *v, std::vector<GLfloat> *vt, std::vector<GLushort> *ind);
-
-    void addVertex(float v1, float v2, float v3, std::vector<GLfloat> *v);
-
-    void addUv(float v1, float v2, std::vector<GLfloat> *vt);
-
 #define CHECKGLERROR(label) CheckGlError(__FILE__, __LINE__, label)
 
 /**
@@ -100,6 +84,10 @@ namespace ndk_opi {
  */
     GLuint LoadGLShader(GLenum type, const char* shader_source);
 
+/**
+ * Quad that shapes are drawn on. The fragment shader computes each shape from its
+ * signed distance function, so any shape costs four vertices at any size.
+ */
     class Shape {
     public:
         const static int NONE    = -1;
@@ -108,32 +96,34 @@ namespace ndk_opi {
         const static int CROSS   = 2;
         const static int MALTESE = 3;
         const static int ANNULUS = 4;
+        const static int GABOR   = 5;
+        const static int GRATING = 6;
+        const static int GAUSSIAN = 7;
+
+        // Shapes span -1 to 1. The quad reaches further, to leave room for
+        // antialiased edges of shapes only a few pixels wide.
+        constexpr static float EXTENT = 2.0f;
 
         Shape() = default;
 
-        ~Shape();
+        // a shape owns its GL objects, so it cannot be copied
+        Shape(const Shape&) = delete;
+        Shape& operator=(const Shape&) = delete;
 
-        // Initializes the mesh from a .obj file.
-        //
-        // @return True if initialization was successful.
-        void Initialize(GLuint pos_a, GLuint uv_a, int type);
+        ~Shape();
 
-        // Binds the texture, replacing any previously bound texture.
-        // and sets up luminance and color
-        void Ready(float luminance, const float color[]) const;
+        // Uploads the quad to a GPU buffer. Called again whenever the GL context is
+        // recreated.
+        void Initialize(GLuint pos_a, GLint shape_u);
 
-        // Draws the mesh. The u_MVP uniform should be set before calling this using
-        // glUniformMatrix4fv(), and a texture should be bound to GL_TEXTURE0.
-        void Draw() const;
+        // Draws a shape of the given type. The u_MVP, u_Lum and u_Color uniforms
+        // should be set before calling this.
+        void Draw(int type) const;
 
     private:
-        int native;
-        std::vector<GLfloat> vertices;
-        std::vector<GLfloat> uv;
-        std::vector<GLushort> indices;
-        GLuint position_attrib{0};
-        GLuint uv_attrib{0};
-        GLuint texture_id{0};
+        GLint shape_uniform{-1};
+        GLuint vertex_array{0};
+        GLuint vertex_buffer{0};
     };
 }  // namespace ndk_opi
 
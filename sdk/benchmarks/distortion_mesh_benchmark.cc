@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times building the distortion meshes for both eyes at resolutions from 40
+// to 160 lines each way:
+//
+// - baseline: as meshes were first built, one point at a time with the secant
+//   method, one eye after the other on one thread.
+// - serial: DistortionMesh on one thread, one eye after the other.
+// - parallel: DistortionMesh as LensDistortion builds it, with the right eye on
+//   a second thread and the points of each eye split among threads when there
+//   are enough of them.
+//
+// It also times starting and joining a thread against warping a point, which
+// sets how many points a mesh warps on each thread at least, and prints the
+// resolution meshes pick for a few target errors. Times are the median of
+// kRepeats runs.
+
+#include <algorithm>
+#include <array>
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <limits>
+#include <thread>
+#include <vector>
+
+#include "distortion_mesh.h"
+#include "polynomial_radial_distortion.h"
+
+namespace cardboard {
+namespace {
+
+constexpr int kRepeats = 21;
+
+// Screen and texture of a Cardboard v2 like viewer on a 6 inch phone, in
+// tan-angle units.
+constexpr float kScreenWidth = 3.55f;
+constexpr float kScreenHeight = 1.76f;
+constexpr float kXEyeOffsetScreen[2] = {0.955f, 2.595f};
+constexpr float kYEyeOffsetScreen = 0.88f;
+constexpr float kTextureSize = 1.68f;
+constexpr float kEyeOffsetTexture = 0.839f;
+
+template <typename Function>
+double MedianMilliseconds(Function function) {
+  std::vector<double> times;
+  for (int i = 0; i < kRepeats; i++) {
+    const auto start = std::chrono::steady_clock::now();
+    function();
+    const auto end = std::chrono::steady_clock::now();
+    times.push_back(
+        std::chrono::duration<double, std::milli>(end - start).count());
+  }
+  std::nth_element(times.begin(), times.begin() + kRepeats / 2, times.end());
+  return times[kRepeats / 2];
+}
+
+// The secant method DistortInverse used before the inverse table.
+std::array<float, 2> SecantDistortInverse(
+    const PolynomialRadialDistortion& distortion,
+    const std::array<float, 2>& p) {
+  const float radius = std::sqrt(p[0] * p[0] + p[1] * p[1]);
+  if (std::fabs(radius - 0.0f) < std::numeric_limits<float>::epsilon()) {
+    return std::array<float, 2>();
+  }
+  auto distort_radius = [&distortion](float r) {
+    return distortion.Distort({r, 0.0f})[0];
+  };
+  float r0 = radius / 2.0f;
+  float r1 = radius / 3.0f;
+  float r2;
+  float dr0 = radius - distort_radius(r0);
+  float dr1;
+  while (std::fabs(r1 - r0) > 0.0001f /** 0.1mm */) {
+    dr1 = radius - distort_radius(r1);
+    r2 = r1 - dr1 * ((r1 - r0) / (dr1 - dr0));
+    r0 = r1;
+    r1 = r2;
+    dr0 = dr1;
+  }
+  return std::array<float, 2>{(r1 / radius) * p[0], (r1 / radius) * p[1]};
+}
+
+// Builds the vertices, uvs and triangle strip of one eye as the mesh was
+// first built. Returns a value that depends on them, so they are not left out.
+float BuildBaselineMesh(const PolynomialRadialDistortion& distortion, int eye,
+                        int resolution) {
+  std::vector<float> vertex_data(resolution * resolution * 2);
+  std::vector<float> uvs_data(resolution * resolution * 2);
+  for (int row = 0; row < resolution; row++) {
+    for (int col = 0; col < resolution; col++) {
+      const float u_texture = static_cast<float>(col) / (resolution - 1);
+      const float v_texture = static_cast<float>(row) / (resolution - 1);
+      const std::array<float, 2> p_screen = SecantDistortInverse(
+          distortion, {u_texture * kTextureSize - kEyeOffsetTexture,
+                       v_texture * kTextureSize - kEyeOffsetTexture});
+      const float u_screen =
+          (p_screen[0] + kXEyeOffsetScreen[eye]) / kScreenWidth;
+      const float v_screen = (p_screen[1] + kYEyeOffsetScreen) / kScreenHeight;
+      const int index = (row * resolution + col) * 2;
+      vertex_data[index + 0] = 2 * u_screen - 1;
+      vertex_data[index + 1] = 2 * v_screen - 1;
+      uvs_data[index + 0] = u_texture;
+      uvs_data[index + 1] = v_texture;
+    }
+  }
+  std::vector<int> index_data(2 * (resolution - 1) * resolution +
+                              (resolution - 2));
+  int index_offset = 0;
+  int vertex_offset = 0;
+  for (int row = 0; row < resolution - 1; row++) {
+    if (row > 0) {
+      index_data[index_offset] = index_data[index_offset - 1];
+      index_offset++;
+    }
+    for (int col = 0; col < resolution; col++) {
+      if (col > 0) {
+        vertex_offset += row % 2 == 0 ? 1 : -1;
+      }
+      index_data[index_offset++] = vertex_offset;
+      index_data[index_offset++] = vertex_offset + resolution;
+    }
+    vertex_offset += resolution;
+  }
+  return vertex_data.back() + uvs_data.back() + index_data.back();
+}
+
+int BuildMesh(const PolynomialRadialDistortion& distortion, int eye,
+              int resolution) {
+  const DistortionMesh mesh(distortion, kScreenWidth, kScreenHeight,
+                            kXEyeOffsetScreen[eye], kYEyeOffsetScreen,
+                            kTextureSize, kTextureSize, kEyeOffsetTexture,
+                            kEyeOffsetTexture, 0, DistortionMesh::kMaxWarpError,
+                            resolution);
+  return mesh.GetVertexCount();
+}
+
+// Cost of starting and joining a thread against warping a point with the
+// inverse table, in microseconds, and the points that take as long.
+void RunThreadCost(const PolynomialRadialDistortion& distortion) {
+  constexpr int kThreads = 100;
+  const double thread_us = MedianMilliseconds([]() {
+                             for (int i = 0; i < kThreads; i++) {
+                               std::thread([]() {}).join();
+                             }
+                           }) *
+                           1000.0 / kThreads;
+  constexpr int kPoints = 25600;
+  std::vector<float> x(kPoints), y(kPoints), out_x(kPoints), out_y(kPoints);
+  for (int i = 0; i < kPoints; i++) {
+    x[i] = (i % 160) / 159.0f * kTextureSize - kEyeOffsetTexture;
+    y[i] = (i / 160) / 159.0f * kTextureSize - kEyeOffsetTexture;
+  }
+  const double point_us = MedianMilliseconds([&]() {
+                            distortion.DistortInverse(x.data(), y.data(),
+                                                      kPoints, out_x.data(),
+                                                      out_y.data());
+                          }) *
+                          1000.0 / kPoints;
+  printf("thread start and join %.1f us, warp %.4f us per point: %.0f points\n",
+         thread_us, point_us, thread_us / point_us);
+}
+
+// Resolution picked for each target error, with the error measured at it and
+// at one line fewer each way, which should be over the target.
+void RunTargets(const PolynomialRadialDistortion& distortion) {
+  printf("%12s %10s %9s %10s %17s\n", "target error", "resolution", "vertices",
+         "max error", "one line fewer");
+  for (float target = 8e-4f; target > 2e-5f; target /= 2) {
+    const DistortionMesh mesh(distortion, kScreenWidth, kScreenHeight,
+                              kXEyeOffsetScreen[0], kYEyeOffsetScreen,
+                              kTextureSize, kTextureSize, kEyeOffsetTexture,
+                              kEyeOffsetTexture, 0, target);
+    const int resolution = mesh.GetResolution();
+    printf("%12.3g %10d %9d %10.3g %17.3g\n", target, resolution,
+           mesh.GetVertexCount(),
+           DistortionMesh::MeasureError(distortion, kTextureSize, kTextureSize,
+                                        kEyeOffsetTexture, kEyeOffsetTexture,
+                                        resolution),
+           DistortionMesh::MeasureError(distortion, kTextureSize, kTextureSize,
+                                        kEyeOffsetTexture, kEyeOffsetTexture,
+                                        resolution - 1));
+  }
+}
+
+void Run(const std::vector<float>& coefficients) {
+  const PolynomialRadialDistortion distortion(coefficients);
+  printf("coefficients {%g, %g}, %u hardware threads\n", coefficients[0],
+         coefficients[1], std::thread::hardware_concurrency());
+  RunThreadCost(distortion);
+  printf("%10s %9s %12s %10s %12s %15s\n", "resolution", "vertices",
+         "baseline ms", "serial ms", "parallel ms", "speedup vs base");
+  for (int resolution = 40; resolution <= 160; resolution += 20) {
+    volatile float sink = 0.0f;
+    const double baseline = MedianMilliseconds([&]() {
+      for (int eye = 0; eye < 2; eye++) {
+        sink = sink + BuildBaselineMesh(distortion, eye, resolution);
+      }
+    });
+    int vertices = 0;
+    DistortionMesh::SetMaxThreads(1);
+    const double serial = MedianMilliseconds([&]() {
+      for (int eye = 0; eye < 2; eye++) {
+        vertices = BuildMesh(distortion, eye, resolution);
+      }
+    });
+    DistortionMesh::SetMaxThreads(0);
+    const double parallel = MedianMilliseconds([&]() {
+      std::thread right([&]() { BuildMesh(distortion, 1, resolution); });
+      BuildMesh(distortion, 0, resolution);
+      right.join();
+    });
+    printf("%10d %9d %12.3f %10.3f %12.3f %15.1f\n", resolution, vertices,
+           baseline, serial, parallel, baseline / parallel);
+  }
+  RunTargets(distortion);
+}
+
+}  // anonymous namespace
+}  // namespace cardboard
+
+int main() {
+  cardboard::Run({0.34f, 0.55f});
+  cardboard::Run({0.441f, 0.156f});
+  return 0;
+}
@@ -114,6 +114,7 @@ void Cardboard_initializeAndroid(JavaVM* vm, jobject context) {
   cardboard::qrcode::initializeAndroid(vm, global_context);
   cardboard::screen_params::initializeAndroid(vm, global_context);
   cardboard::DeviceParams::initializeAndroid(vm, global_context);
+  cardboard::DistortionMesh::initializeAndroid(vm, global_context);
 
   cardboard::util::SetIsInitialized();
 }
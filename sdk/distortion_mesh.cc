@@ -15,50 +15,280 @@
  */
 #include "distortion_mesh.h"
 
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <algorithm>
+#include <array>
+#include <atomic>
+#include <cinttypes>
+#include <cmath>
+#include <cstdio>
+#include <thread>
 #include <vector>
 
 #include "include/cardboard.h"
+#include "util/hash.h"
+#include "util/logging.h"
+#ifdef __ANDROID__
+#include "jni_utils/android/jni_utils.h"
+#endif
 
 namespace cardboard {
 
+namespace {
+
+// Saved meshes start with this header, followed by the vertices, the uvs and
+// the indices, in the byte order of the device they were saved on.
+struct CacheHeader {
+  uint32_t magic;
+  uint32_t version;
+  uint64_t key;
+  int32_t resolution;
+  int32_t n_vertices;
+  int32_t n_indices;
+  int32_t reserved;
+};
+constexpr uint32_t kCacheMagic = 0x48534d44;  // "DMSH"
+constexpr uint32_t kCacheVersion = 3;
+
+// Empty if meshes are not saved.
+std::string cache_directory_;
+
+// Meshes for both eyes are built at once, so each takes up to half the cores.
+constexpr int kMaxMeshThreads = 4;
+// Points warped on each thread at least. Starting and joining a thread costs
+// about as much as warping 1000 to 1300 points with the inverse table, as
+// measured by benchmarks/distortion_mesh_benchmark, so meshes within the
+// default error are warped on the calling thread alone.
+constexpr int kMinPointsPerThread = 4096;
+
+// Set by SetMaxThreads, 0 to pick from the cores.
+std::atomic<int> max_threads_{0};
+
+int MeshThreads() {
+  const int max_threads = max_threads_.load(std::memory_order_relaxed);
+  if (max_threads > 0) {
+    return max_threads;
+  }
+  const int cores = static_cast<int>(std::thread::hardware_concurrency());
+  return std::min(kMaxMeshThreads, std::max(1, cores / 2));
+}
+
+// DistortInverse with the points split among a few threads, if there are
+// enough of them to be worth starting a thread.
+void DistortInverseInParallel(const PolynomialRadialDistortion& distortion,
+                              const float* x, const float* y, int n,
+                              float* out_x, float* out_y) {
+  const int n_threads =
+      std::min(MeshThreads(), std::max(1, n / kMinPointsPerThread));
+  const int points_per_thread = (n + n_threads - 1) / n_threads;
+  std::vector<std::thread> threads;
+  for (int begin = points_per_thread; begin < n; begin += points_per_thread) {
+    const int count = std::min(points_per_thread, n - begin);
+    threads.emplace_back([&distortion, x, y, out_x, out_y, begin, count]() {
+      distortion.DistortInverse(x + begin, y + begin, count, out_x + begin,
+                                out_y + begin);
+    });
+  }
+  distortion.DistortInverse(x, y, std::min(points_per_thread, n), out_x,
+                            out_y);
+  for (std::thread& thread : threads) {
+    thread.join();
+  }
+}
+
+// Adds the points of the texture, in tan-angle units relative to the eye, at
+// the vertices of a uniform grid of resolution lines each way, or halfway
+// between them across columns, rows or both.
+void AddGridPoints(int resolution, bool col_midpoints, bool row_midpoints,
+                   float texture_width, float texture_height,
+                   float x_eye_offset_texture, float y_eye_offset_texture,
+                   std::vector<float>* x, std::vector<float>* y) {
+  const float spacing = 1.0f / (resolution - 1);
+  for (int row = 0; row < resolution - (row_midpoints ? 1 : 0); row++) {
+    for (int col = 0; col < resolution - (col_midpoints ? 1 : 0); col++) {
+      const float u_texture = (col + (col_midpoints ? 0.5f : 0.0f)) * spacing;
+      const float v_texture = (row + (row_midpoints ? 0.5f : 0.0f)) * spacing;
+
+      // texture position & radius relative to eye center in meters - I
+      // believe this is tanangle
+      x->push_back(u_texture * texture_width - x_eye_offset_texture);
+      y->push_back(v_texture * texture_height - y_eye_offset_texture);
+    }
+  }
+}
+
+// Distance from the point at index to the midpoint of the points at a and b.
+float MidpointError(const std::vector<float>& x, const std::vector<float>& y,
+                    int index, int a, int b) {
+  return std::hypot(x[index] - (x[a] + x[b]) / 2.0f,
+                    y[index] - (y[a] + y[b]) / 2.0f);
+}
+
+}  // anonymous namespace
+
 DistortionMesh::DistortionMesh(
     const PolynomialRadialDistortion& distortion,
     // Units of the following parameters are tan-angle units.
     float screen_width, float screen_height, float x_eye_offset_screen,
     float y_eye_offset_screen, float texture_width, float texture_height,
-    float x_eye_offset_texture, float y_eye_offset_texture) {
-  vertex_data_.resize(kResolution * kResolution *
-                      2);                           // 2 components per vertex
-  uvs_data_.resize(kResolution * kResolution * 2);  // 2 components per uv
-  float u_screen, v_screen, u_texture, v_texture;
-  std::array<float, 2> p_texture;
-  std::array<float, 2> p_screen;
-  for (int row = 0; row < kResolution; row++) {
-    for (int col = 0; col < kResolution; col++) {
-      // Note that we warp the mesh vertices using the inverse of
-      // the distortion function instead of warping the texture
-      // coordinates by the distortion function so that the mesh
-      // exactly covers the screen area that gets rendered to.
-      // Helps avoid visible aliasing in the vignette.
-      u_texture = (static_cast<float>(col) / (kResolution - 1));
-      v_texture = (static_cast<float>(row) / (kResolution - 1));
-
-      // texture position & radius relative to eye center in meters - I believe
-      // this is tanangle
-      p_texture[0] = u_texture * texture_width - x_eye_offset_texture;
-      p_texture[1] = v_texture * texture_height - y_eye_offset_texture;
-
-      p_screen = distortion.DistortInverse(p_texture);
-
-      u_screen = (p_screen[0] + x_eye_offset_screen) / screen_width;
-      v_screen = (p_screen[1] + y_eye_offset_screen) / screen_height;
-
-      const int index = (row * kResolution + col) * 2;
-
-      vertex_data_[index + 0] = 2 * u_screen - 1;
-      vertex_data_[index + 1] = 2 * v_screen - 1;
-      uvs_data_[index + 0] = u_texture;
-      uvs_data_[index + 1] = v_texture;
+    float x_eye_offset_texture, float y_eye_offset_texture,
+    uint64_t params_hash, float max_error, int resolution) {
+  const std::array<float, 9> params = {
+      screen_width,         screen_height,        x_eye_offset_screen,
+      y_eye_offset_screen,  texture_width,        texture_height,
+      x_eye_offset_texture, y_eye_offset_texture, max_error};
+  resolution = resolution > 0 ? std::max(2, resolution) : 0;
+  uint64_t key = Fnv1aHash(params.data(), sizeof(params), params_hash);
+  key = Fnv1aHash(&resolution, sizeof(resolution), key);
+
+  std::string path;
+  if (!cache_directory_.empty()) {
+    char name[48];
+    snprintf(name, sizeof(name), "/distortion_mesh_%016" PRIx64 ".bin", key);
+    path = cache_directory_ + name;
+    if (Load(path, key, resolution)) {
+      return;
+    }
+  }
+  // Only picked when the mesh is built, as the cache is keyed by max_error.
+  resolution_ = resolution > 0
+                    ? resolution
+                    : ResolutionForError(distortion, texture_width,
+                                         texture_height, x_eye_offset_texture,
+                                         y_eye_offset_texture, max_error);
+  Build(distortion, screen_width, screen_height, x_eye_offset_screen,
+        y_eye_offset_screen, texture_width, texture_height,
+        x_eye_offset_texture, y_eye_offset_texture);
+  if (!path.empty()) {
+    Save(path, key);
+  }
+}
+
+void DistortionMesh::SetMaxThreads(int threads) {
+  max_threads_.store(std::max(0, threads), std::memory_order_relaxed);
+}
+
+DistortionMesh::~DistortionMesh() {
+  if (mapping_ != nullptr) {
+    munmap(mapping_, mapping_size_);
+  }
+}
+
+float DistortionMesh::MeasureError(
+    const PolynomialRadialDistortion& distortion, float texture_width,
+    float texture_height, float x_eye_offset_texture,
+    float y_eye_offset_texture, int resolution) {
+  const int n_cols = std::max(2, resolution), n_rows = n_cols;
+  // The vertices, then the midpoints of the edges across columns and across
+  // rows, then the centres of the cells.
+  std::vector<float> x_texture, y_texture;
+  for (int pass = 0; pass < 4; pass++) {
+    AddGridPoints(n_cols, pass == 1 || pass == 3, pass == 2 || pass == 3,
+                  texture_width, texture_height, x_eye_offset_texture,
+                  y_eye_offset_texture, &x_texture, &y_texture);
+  }
+  const int n = static_cast<int>(x_texture.size());
+  std::vector<float> x_screen(n), y_screen(n);
+  DistortInverseInParallel(distortion, x_texture.data(), y_texture.data(), n,
+                           x_screen.data(), y_screen.data());
+
+  // At the centre of a cell the error is the worse of its two diagonals, as
+  // the triangle strip alternates them.
+  const int col_midpoints = n_cols * n_rows;
+  const int row_midpoints = col_midpoints + (n_cols - 1) * n_rows;
+  const int centres = row_midpoints + n_cols * (n_rows - 1);
+  float max_error = 0.0f;
+  for (int row = 0; row < n_rows; row++) {
+    for (int col = 0; col < n_cols; col++) {
+      const int vertex = row * n_cols + col;
+      if (col + 1 < n_cols) {
+        max_error = std::max(
+            max_error, MidpointError(x_screen, y_screen,
+                                     col_midpoints + row * (n_cols - 1) + col,
+                                     vertex, vertex + 1));
+      }
+      if (row + 1 < n_rows) {
+        max_error = std::max(
+            max_error, MidpointError(x_screen, y_screen,
+                                     row_midpoints + row * n_cols + col,
+                                     vertex, vertex + n_cols));
+      }
+      if (col + 1 < n_cols && row + 1 < n_rows) {
+        const int centre = centres + row * (n_cols - 1) + col;
+        max_error = std::max(
+            {max_error,
+             MidpointError(x_screen, y_screen, centre, vertex,
+                           vertex + n_cols + 1),
+             MidpointError(x_screen, y_screen, centre, vertex + 1,
+                           vertex + n_cols)});
+      }
+    }
+  }
+  return max_error;
+}
+
+int DistortionMesh::ResolutionForError(
+    const PolynomialRadialDistortion& distortion, float texture_width,
+    float texture_height, float x_eye_offset_texture,
+    float y_eye_offset_texture, float max_error) {
+  const float probe_error = MeasureError(
+      distortion, texture_width, texture_height, x_eye_offset_texture,
+      y_eye_offset_texture, kProbeResolution);
+  if (!(max_error > 0.0f)) {
+    return kMaxResolution;
+  }
+  // The square law holds to within about half a percent from the probe on,
+  // so the estimate aims 1% under max_error.
+  const float intervals =
+      (kProbeResolution - 1) * std::sqrt(probe_error / (0.99f * max_error));
+  if (!(intervals < kMaxResolution - 1)) {
+    return kMaxResolution;
+  }
+  return std::max(kMinResolution,
+                  1 + static_cast<int>(std::ceil(intervals)));
+}
+
+void DistortionMesh::Build(const PolynomialRadialDistortion& distortion,
+                           float screen_width, float screen_height,
+                           float x_eye_offset_screen, float y_eye_offset_screen,
+                           float texture_width, float texture_height,
+                           float x_eye_offset_texture,
+                           float y_eye_offset_texture) {
+  const int n_cols = resolution_, n_rows = resolution_;
+
+  // Note that we warp the mesh vertices using the inverse of the distortion
+  // function instead of warping the texture coordinates by the distortion
+  // function so that the mesh exactly covers the screen area that gets
+  // rendered to. Helps avoid visible aliasing in the vignette.
+  std::vector<float> x_texture, y_texture;
+  x_texture.reserve(n_cols * n_rows);
+  y_texture.reserve(n_cols * n_rows);
+  AddGridPoints(resolution_, false, false, texture_width, texture_height,
+                x_eye_offset_texture, y_eye_offset_texture, &x_texture,
+                &y_texture);
+  const int n = n_cols * n_rows;
+  std::vector<float> x_screen(n), y_screen(n);
+  DistortInverseInParallel(distortion, x_texture.data(), y_texture.data(), n,
+                           x_screen.data(), y_screen.data());
+
+  vertex_data_.resize(n_cols * n_rows * 2);  // 2 components per vertex
+  uvs_data_.resize(n_cols * n_rows * 2);     // 2 components per uv
+  for (int row = 0; row < n_rows; row++) {
+    for (int col = 0; col < n_cols; col++) {
+      const int vertex = row * n_cols + col;
+      const float u_screen =
+          (x_screen[vertex] + x_eye_offset_screen) / screen_width;
+      const float v_screen =
+          (y_screen[vertex] + y_eye_offset_screen) / screen_height;
+
+      vertex_data_[vertex * 2 + 0] = 2 * u_screen - 1;
+      vertex_data_[vertex * 2 + 1] = 2 * v_screen - 1;
+      uvs_data_[vertex * 2 + 0] = static_cast<float>(col) / (n_cols - 1);
+      uvs_data_[vertex * 2 + 1] = static_cast<float>(row) / (n_rows - 1);
     }
   }
 
@@ -86,16 +316,16 @@ DistortionMesh::DistortionMesh(
   //   2 vertices at the start of each row for the first triangle
   //   1 extra vertex per row (except first and last) for a
   //     degenerate triangle
-  const int n_indices = 2 * (kResolution - 1) * kResolution + (kResolution - 2);
+  const int n_indices = 2 * (n_rows - 1) * n_cols + (n_rows - 2);
   index_data_.resize(n_indices);
   int index_offset = 0;
   int vertex_offset = 0;
-  for (int row = 0; row < kResolution - 1; row++) {
+  for (int row = 0; row < n_rows - 1; row++) {
     if (row > 0) {
       index_data_[index_offset] = index_data_[index_offset - 1];
       index_offset++;
     }
-    for (int col = 0; col < kResolution; col++) {
+    for (int col = 0; col < n_cols; col++) {
       if (col > 0) {
         if (row % 2 == 0) {
           // Move right on even rows.
@@ -106,20 +336,144 @@ DistortionMesh::DistortionMesh(
         }
       }
       index_data_[index_offset++] = vertex_offset;
-      index_data_[index_offset++] = vertex_offset + kResolution;
+      index_data_[index_offset++] = vertex_offset + n_cols;
     }
-    vertex_offset = vertex_offset + kResolution;
+    vertex_offset = vertex_offset + n_cols;
+  }
+
+  indices_ = index_data_.data();
+  vertices_ = vertex_data_.data();
+  uvs_ = uvs_data_.data();
+  n_indices_ = static_cast<int>(index_data_.size());
+  n_vertices_ = static_cast<int>(vertex_data_.size() / 2);
+}
+
+bool DistortionMesh::Load(const std::string& path, uint64_t key,
+                          int resolution) {
+  const int fd = open(path.c_str(), O_RDONLY | O_CLOEXEC);
+  if (fd < 0) {
+    return false;
+  }
+  struct stat file_stat;
+  if (fstat(fd, &file_stat) != 0 ||
+      file_stat.st_size < static_cast<off_t>(sizeof(CacheHeader))) {
+    close(fd);
+    return false;
+  }
+  const size_t size = static_cast<size_t>(file_stat.st_size);
+  void* mapping = mmap(nullptr, size, PROT_READ, MAP_PRIVATE, fd, 0);
+  close(fd);
+  if (mapping == MAP_FAILED) {
+    return false;
+  }
+
+  // The counts are those of a grid of the saved resolution, which must be
+  // one the mesh could have been built at, and must account for the whole
+  // file, so no array reaches past the mapping.
+  const CacheHeader* header = static_cast<const CacheHeader*>(mapping);
+  const int saved = header->resolution;
+  bool valid = resolution > 0 ? saved == resolution
+                              : saved >= kMinResolution &&
+                                    saved <= kMaxResolution;
+  const int n_vertices = valid ? saved * saved : 0;
+  const int n_indices = valid ? 2 * (saved - 1) * saved + (saved - 2) : 0;
+  valid = valid && header->magic == kCacheMagic &&
+          header->version == kCacheVersion && header->key == key &&
+          header->n_vertices == n_vertices &&
+          header->n_indices == n_indices &&
+          size == sizeof(CacheHeader) +
+                      4 * sizeof(float) * static_cast<size_t>(n_vertices) +
+                      sizeof(int) * static_cast<size_t>(n_indices);
+  // Every index must name one of the vertices.
+  const float* vertices = reinterpret_cast<const float*>(header + 1);
+  const int* indices = reinterpret_cast<const int*>(
+      vertices + 4 * static_cast<size_t>(n_vertices));
+  for (int i = 0; valid && i < n_indices; i++) {
+    valid = indices[i] >= 0 && indices[i] < n_vertices;
+  }
+  if (!valid) {
+    CARDBOARD_LOGE("Ignoring distortion mesh cache %s", path.c_str());
+    munmap(mapping, size);
+    return false;
+  }
+
+  mapping_ = mapping;
+  mapping_size_ = size;
+  n_vertices_ = n_vertices;
+  n_indices_ = n_indices;
+  resolution_ = saved;
+  vertices_ = vertices;
+  uvs_ = vertices_ + 2 * n_vertices_;
+  indices_ = indices;
+  return true;
+}
+
+void DistortionMesh::Save(const std::string& path, uint64_t key) const {
+  // Written aside and renamed, so a mesh is never loaded half written.
+  const std::string temp_path = path + ".tmp";
+  FILE* file = fopen(temp_path.c_str(), "wb");
+  if (file == nullptr) {
+    CARDBOARD_LOGE("Cannot save distortion mesh cache %s", path.c_str());
+    return;
+  }
+  const CacheHeader header = {kCacheMagic, kCacheVersion, key, resolution_,
+                              n_vertices_, n_indices_, 0};
+  bool written = fwrite(&header, sizeof(header), 1, file) == 1;
+  written = written && fwrite(vertices_, sizeof(float), 2 * n_vertices_,
+                              file) == static_cast<size_t>(2 * n_vertices_);
+  written = written && fwrite(uvs_, sizeof(float), 2 * n_vertices_, file) ==
+                           static_cast<size_t>(2 * n_vertices_);
+  written = written && fwrite(indices_, sizeof(int), n_indices_, file) ==
+                           static_cast<size_t>(n_indices_);
+  written = fclose(file) == 0 && written;
+  if (!written || rename(temp_path.c_str(), path.c_str()) != 0) {
+    CARDBOARD_LOGE("Cannot save distortion mesh cache %s", path.c_str());
+    remove(temp_path.c_str());
   }
 }
 
 CardboardMesh DistortionMesh::GetMesh() const {
   CardboardMesh mesh;
-  mesh.indices = const_cast<int*>(index_data_.data());
-  mesh.vertices = const_cast<float*>(vertex_data_.data());
-  mesh.uvs = const_cast<float*>(uvs_data_.data());
-  mesh.n_indices = static_cast<int>(index_data_.size());
-  mesh.n_vertices = static_cast<int>(vertex_data_.size() / 2);
+  mesh.indices = const_cast<int*>(indices_);
+  mesh.vertices = const_cast<float*>(vertices_);
+  mesh.uvs = const_cast<float*>(uvs_);
+  mesh.n_indices = n_indices_;
+  mesh.n_vertices = n_vertices_;
   return mesh;
 }
 
+#ifdef __ANDROID__
+void DistortionMesh::initializeAndroid(JavaVM* vm, jobject context) {
+  JNIEnv* env;
+  cardboard::jni::LoadJNIEnv(vm, &env);
+  if (env == nullptr) {
+    return;
+  }
+
+  jclass context_class = env->GetObjectClass(context);
+  jmethodID get_cache_dir =
+      env->GetMethodID(context_class, "getCacheDir", "()Ljava/io/File;");
+  jobject cache_dir = env->CallObjectMethod(context, get_cache_dir);
+  if (cardboard::jni::CheckExceptionInJava(env) || cache_dir == nullptr) {
+    return;
+  }
+  jclass file_class = env->GetObjectClass(cache_dir);
+  jmethodID get_path =
+      env->GetMethodID(file_class, "getAbsolutePath", "()Ljava/lang/String;");
+  jstring path =
+      static_cast<jstring>(env->CallObjectMethod(cache_dir, get_path));
+  if (cardboard::jni::CheckExceptionInJava(env) || path == nullptr) {
+    return;
+  }
+  const char* chars = env->GetStringUTFChars(path, nullptr);
+  cache_directory_ = chars;
+  env->ReleaseStringUTFChars(path, chars);
+
+  env->DeleteLocalRef(path);
+  env->DeleteLocalRef(file_class);
+  env->DeleteLocalRef(cache_dir);
+  env->DeleteLocalRef(context_class);
+}
+#endif
+
 }  // namespace cardboard
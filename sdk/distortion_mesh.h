@@ -16,8 +16,15 @@
 #ifndef CARDBOARD_SDK_DISTORTION_MESH_H_
 #define CARDBOARD_SDK_DISTORTION_MESH_H_
 
+#include <cstddef>
+#include <cstdint>
+#include <string>
 #include <vector>
 
+#ifdef __ANDROID__
+#include <jni.h>
+#endif
+
 #include "include/cardboard.h"
 #include "polynomial_radial_distortion.h"
 
@@ -25,20 +32,96 @@ namespace cardboard {
 
 class DistortionMesh {
  public:
+  // Largest error a mesh is built within unless told otherwise, in tan-angle
+  // units of the screen. About a quarter of a pixel on typical phones and
+  // viewers.
+  static constexpr float kMaxWarpError = 0.0004f;
+  // Lines each way a mesh may have when picked to be within an error.
+  static constexpr int kMinResolution = 9;
+  static constexpr int kMaxResolution = 160;
+
+  // Meshes are saved to the cache directory, keyed by params_hash, which
+  // should identify the device params the distortion comes from, and by the
+  // rest of the parameters. A mesh saved before is mapped from its file
+  // instead of built again. The mesh is a uniform grid of resolution lines
+  // each way or, if resolution is 0, of the fewest lines that keep it within
+  // max_error, from ResolutionForError.
   DistortionMesh(const PolynomialRadialDistortion& distortion,
                  // Units of the following parameters are tan-angle units.
                  float screen_width, float screen_height,
                  float x_eye_offset_screen, float y_eye_offset_screen,
                  float texture_width, float texture_height,
-                 float x_eye_offset_texture, float y_eye_offset_texture);
-  virtual ~DistortionMesh() = default;
+                 float x_eye_offset_texture, float y_eye_offset_texture,
+                 uint64_t params_hash, float max_error = kMaxWarpError,
+                 int resolution = 0);
+  virtual ~DistortionMesh();
+  DistortionMesh(const DistortionMesh&) = delete;
+  DistortionMesh& operator=(const DistortionMesh&) = delete;
   CardboardMesh GetMesh() const;
 
+  // Number of lines of the grid each way.
+  int GetResolution() const { return resolution_; }
+
+  // Number of vertices in the mesh.
+  int GetVertexCount() const { return n_vertices_; }
+
+  // Largest distance between a point of the texture warped by the distortion
+  // and where a mesh of resolution lines each way draws it, in tan-angle units
+  // of the screen. It is measured halfway along the edges and at the centre of
+  // the cells, about four times as many points as the mesh has vertices, so
+  // meshes do not measure it when built.
+  static float MeasureError(const PolynomialRadialDistortion& distortion,
+                            float texture_width, float texture_height,
+                            float x_eye_offset_texture,
+                            float y_eye_offset_texture, int resolution);
+
+  // Fewest lines each way that keep a mesh within max_error, between
+  // kMinResolution and kMaxResolution. The error goes as the square of the
+  // line spacing, so it is scaled from the error measured at
+  // kProbeResolution lines.
+  static int ResolutionForError(const PolynomialRadialDistortion& distortion,
+                                float texture_width, float texture_height,
+                                float x_eye_offset_texture,
+                                float y_eye_offset_texture, float max_error);
+
+  // Most threads each mesh warps its points on. 0, the default, takes up to
+  // half the cores, as both eyes are built at once. For benchmarking.
+  static void SetMaxThreads(int threads);
+
+#ifdef __ANDROID__
+  // Looks up the application cache directory, where meshes are saved.
+  static void initializeAndroid(JavaVM* vm, jobject context);
+#endif
+
  private:
-  static constexpr int kResolution = 40;
+  // Lines each way of the mesh the error is measured on to pick the resolution.
+  static constexpr int kProbeResolution = 17;
+
+  void Build(const PolynomialRadialDistortion& distortion, float screen_width,
+             float screen_height, float x_eye_offset_screen,
+             float y_eye_offset_screen, float texture_width,
+             float texture_height, float x_eye_offset_texture,
+             float y_eye_offset_texture);
+  // Maps the mesh saved at path. Returns false if there is none, or it is not
+  // valid for key, or it is not a whole grid of resolution lines each way, or
+  // of any resolution from kMinResolution to kMaxResolution if resolution is
+  // 0, e.g. truncated or corrupt, in which case it is built again.
+  bool Load(const std::string& path, uint64_t key, int resolution);
+  void Save(const std::string& path, uint64_t key) const;
+
   std::vector<int> index_data_;
   std::vector<float> vertex_data_;
   std::vector<float> uvs_data_;
+
+  // File the mesh was loaded from, mapped in memory, or null if it was built.
+  void* mapping_ = nullptr;
+  size_t mapping_size_ = 0;
+  const int* indices_ = nullptr;
+  const float* vertices_ = nullptr;
+  const float* uvs_ = nullptr;
+  int n_indices_ = 0;
+  int n_vertices_ = 0;
+  int resolution_ = 0;
 };
 
 }  // namespace cardboard
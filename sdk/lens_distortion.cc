@@ -17,9 +17,11 @@
 
 #include <cmath>
 #include <cstring>
+#include <thread>
 
 #include "include/cardboard.h"
 #include "screen_params.h"
+#include "util/hash.h"
 
 namespace cardboard {
 
@@ -37,6 +39,8 @@ LensDistortion::LensDistortion(const uint8_t* encoded_device_params, int size,
                                int display_width, int display_height) {
   device_params_.ParseFromArray(encoded_device_params, size);
 
+  params_hash_ = Fnv1aHash(encoded_device_params, size);
+
   eye_from_head_matrix_[kLeft] = cardboard::Matrix4x4::Translation(
       device_params_.inter_lens_distance() * 0.5f, 0.f, 0.f);
   eye_from_head_matrix_[kRight] = cardboard::Matrix4x4::Translation(
@@ -87,12 +91,18 @@ void LensDistortion::UpdateParams() {
   fov_[kRight][0] = fov_[kLeft][1];
   fov_[kRight][1] = fov_[kLeft][0];
 
+  // Meshes for both eyes are built at once.
+  std::thread right_mesh_thread([this]() {
+    right_mesh_ = std::unique_ptr<DistortionMesh>(
+        CreateDistortionMesh(kRight, device_params_, *distortion_, fov_[kRight],
+                             screen_width_meters_, screen_height_meters_,
+                             params_hash_));
+  });
   left_mesh_ = std::unique_ptr<DistortionMesh>(
       CreateDistortionMesh(kLeft, device_params_, *distortion_, fov_[kLeft],
-                           screen_width_meters_, screen_height_meters_));
-  right_mesh_ = std::unique_ptr<DistortionMesh>(
-      CreateDistortionMesh(kRight, device_params_, *distortion_, fov_[kRight],
-                           screen_width_meters_, screen_height_meters_));
+                           screen_width_meters_, screen_height_meters_,
+                           params_hash_));
+  right_mesh_thread.join();
 }
 
 std::array<float, 2> LensDistortion::DistortedUvForUndistortedUv(
@@ -208,7 +218,7 @@ DistortionMesh* LensDistortion::CreateDistortionMesh(
     CardboardEye eye, const DeviceParams& device_params,
     const PolynomialRadialDistortion& distortion,
     const std::array<float, 4>& fov, float screen_width_meters,
-    float screen_height_meters) {
+    float screen_height_meters, uint64_t params_hash) {
   ViewportParams screen_params, texture_params;
 
   CalculateViewportParameters(eye, device_params, fov, screen_width_meters,
@@ -219,7 +229,7 @@ DistortionMesh* LensDistortion::CreateDistortionMesh(
                             screen_params.height, screen_params.x_eye_offset,
                             screen_params.y_eye_offset, texture_params.width,
                             texture_params.height, texture_params.x_eye_offset,
-                            texture_params.y_eye_offset);
+                            texture_params.y_eye_offset, params_hash);
 }
 
 void LensDistortion::CalculateViewportParameters(
@@ -60,7 +60,7 @@ class LensDistortion {
       CardboardEye eye, const cardboard::DeviceParams& device_params,
       const cardboard::PolynomialRadialDistortion& distortion,
       const std::array<float, 4>& fov, float screen_width_meters,
-      float screen_height_meters);
+      float screen_height_meters, uint64_t params_hash);
   static std::array<float, 4> CalculateFov(
       const cardboard::DeviceParams& device_params,
       const cardboard::PolynomialRadialDistortion& distortion,
@@ -75,6 +75,8 @@ class LensDistortion {
   static constexpr float DegreesToRadians(float angle);
 
   DeviceParams device_params_;
+  // Hash of the encoded device params, to find the meshes saved for them.
+  uint64_t params_hash_;
 
   float screen_width_meters_;
   float screen_height_meters_;
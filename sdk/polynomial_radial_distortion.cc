@@ -15,14 +15,18 @@
  */
 #include "polynomial_radial_distortion.h"
 
+#include <algorithm>
 #include <cmath>
 #include <limits>
+#include <vector>
 
 namespace cardboard {
 
 PolynomialRadialDistortion::PolynomialRadialDistortion(
     const std::vector<float>& coefficients)
-    : coefficients_(coefficients) {}
+    : coefficients_(coefficients) {
+  BuildInverseTable();
+}
 
 float PolynomialRadialDistortion::DistortionFactor(float r_squared) const {
   float r_factor = 1.0f;
@@ -40,6 +44,25 @@ float PolynomialRadialDistortion::DistortRadius(float r) const {
   return r * DistortionFactor(r * r);
 }
 
+void PolynomialRadialDistortion::DistortRadii(const float* r, int n,
+                                              float* r_factor,
+                                              float* out) const {
+  // out holds the distortion factors until they are complete.
+  for (int i = 0; i < n; i++) {
+    r_factor[i] = 1.0f;
+    out[i] = 1.0f;
+  }
+  for (float ki : coefficients_) {
+    for (int i = 0; i < n; i++) {
+      r_factor[i] *= r[i] * r[i];
+      out[i] += ki * r_factor[i];
+    }
+  }
+  for (int i = 0; i < n; i++) {
+    out[i] *= r[i];
+  }
+}
+
 std::array<float, 2> PolynomialRadialDistortion::Distort(
     const std::array<float, 2>& p) const {
   float distortion_factor = DistortionFactor(p[0] * p[0] + p[1] * p[1]);
@@ -54,6 +77,67 @@ std::array<float, 2> PolynomialRadialDistortion::DistortInverse(
     return std::array<float, 2>();
   }
 
+  const float r = radius <= inverse_max_radius_ ? TableInverseRadius(radius)
+                                                : SecantInverseRadius(radius);
+  return std::array<float, 2>{(r / radius) * p[0], (r / radius) * p[1]};
+}
+
+void PolynomialRadialDistortion::DistortInverse(const float* x, const float* y,
+                                                int n, float* out_x,
+                                                float* out_y) const {
+  std::vector<float> radius(n), inverse(n);
+  std::vector<int> outside;
+  for (int i = 0; i < n; i++) {
+    radius[i] = std::sqrt(x[i] * x[i] + y[i] * y[i]);
+  }
+  for (int i = 0; i < n; i++) {
+    inverse[i] = TableInverseRadius(std::min(radius[i], inverse_max_radius_));
+  }
+  for (int i = 0; i < n; i++) {
+    if (radius[i] > inverse_max_radius_) {
+      outside.push_back(i);
+    }
+  }
+
+  // Radii beyond the table are found by the secant method.
+  if (!outside.empty()) {
+    const int m = static_cast<int>(outside.size());
+    std::vector<float> outside_radius(m), outside_inverse(m);
+    for (int j = 0; j < m; j++) {
+      outside_radius[j] = radius[outside[j]];
+    }
+    SecantInverseRadii(outside_radius.data(), m, outside_inverse.data());
+    for (int j = 0; j < m; j++) {
+      inverse[outside[j]] = outside_inverse[j];
+    }
+  }
+
+  for (int i = 0; i < n; i++) {
+    const float scale =
+        std::fabs(radius[i] - 0.0f) < std::numeric_limits<float>::epsilon()
+            ? 0.0f
+            : inverse[i] / radius[i];
+    out_x[i] = scale * x[i];
+    out_y[i] = scale * y[i];
+  }
+}
+
+float PolynomialRadialDistortion::DistortRadiusDerivative(float r) const {
+  const float r_squared = r * r;
+  float r_factor = 1.0f;
+  float derivative = 1.0f;
+  float power = 1.0f;
+
+  for (float ki : coefficients_) {
+    r_factor *= r_squared;
+    power += 2.0f;
+    derivative += power * ki * r_factor;
+  }
+
+  return derivative;
+}
+
+float PolynomialRadialDistortion::SecantInverseRadius(float radius) const {
   // Based on the shape of typical distortion curves, |radius| / 2 and
   // |radius| / 3 are good initial guesses for the Secant method that will
   // remain within the intended range of the polynomial.
@@ -69,8 +153,112 @@ std::array<float, 2> PolynomialRadialDistortion::DistortInverse(
     r1 = r2;
     dr0 = dr1;
   }
+  return r1;
+}
 
-  return std::array<float, 2>{(r1 / radius) * p[0], (r1 / radius) * p[1]};
+void PolynomialRadialDistortion::SecantInverseRadii(const float* radius, int n,
+                                                    float* out) const {
+  std::vector<float> buffer(4 * static_cast<size_t>(n));
+  float* r0 = buffer.data();
+  float* dr0 = r0 + n;
+  float* distorted = dr0 + n;
+  float* scratch = distorted + n;
+  float* r1 = out;
+  for (int i = 0; i < n; i++) {
+    r0[i] = radius[i] / 2.0f;
+    r1[i] = radius[i] / 3.0f;
+  }
+  DistortRadii(r0, n, scratch, distorted);
+  for (int i = 0; i < n; i++) {
+    dr0[i] = radius[i] - distorted[i];
+  }
+
+  // Secant method as in SecantInverseRadius. Every radius is stepped until all
+  // of them converge, and those that already have are left as they are.
+  bool converging = true;
+  while (converging) {
+    converging = false;
+    DistortRadii(r1, n, scratch, distorted);
+    for (int i = 0; i < n; i++) {
+      const bool step = std::fabs(r1[i] - r0[i]) > 0.0001f /** 0.1mm */;
+      const float dr1 = radius[i] - distorted[i];
+      const float r2 = r1[i] - dr1 * ((r1[i] - r0[i]) / (dr1 - dr0[i]));
+      r0[i] = step ? r1[i] : r0[i];
+      r1[i] = step ? r2 : r1[i];
+      dr0[i] = step ? dr1 : dr0[i];
+      converging |= step;
+    }
+  }
+}
+
+float PolynomialRadialDistortion::TableInverseRadius(float radius) const {
+  if (inverse_table_.empty()) {
+    return 0.0f;
+  }
+  // Cubic Hermite interpolation between the two entries around radius.
+  const float t = radius / inverse_step_;
+  const int i = std::min(static_cast<int>(t), kInverseTableSize - 2);
+  const float u = t - static_cast<float>(i);
+  const float v = 1.0f - u;
+  return (1.0f + 2.0f * u) * v * v * inverse_table_[i] +
+         u * v * v * inverse_slope_[i] +
+         u * u * (3.0f - 2.0f * u) * inverse_table_[i + 1] -
+         u * u * v * inverse_slope_[i + 1];
+}
+
+void PolynomialRadialDistortion::BuildInverseTable() {
+  // The table covers distorted radii up to kMaxInverseRadius, or up to where
+  // the polynomial stops increasing and cannot be inverted.
+  float max_r = 0.0f;
+  for (int j = 1; j <= kRangeSearchSteps; j++) {
+    const float r = kMaxInverseRadius * j / kRangeSearchSteps;
+    if (!(DistortRadiusDerivative(r) > 0.0f)) {
+      break;
+    }
+    max_r = r;
+    if (DistortRadius(r) >= kMaxInverseRadius) {
+      break;
+    }
+  }
+  const float max_radius = std::min(DistortRadius(max_r), kMaxInverseRadius);
+  if (!(max_radius > 0.0f)) {
+    return;
+  }
+
+  // Each entry is refined by Newton's method from the extrapolation of the
+  // one before, and stores the slope for the interpolation.
+  std::vector<float> table(kInverseTableSize), slope(kInverseTableSize);
+  const float step = max_radius / (kInverseTableSize - 1);
+  table[0] = 0.0f;
+  slope[0] = step / DistortRadiusDerivative(0.0f);
+  for (int k = 1; k < kInverseTableSize; k++) {
+    const float radius = step * k;
+    float r = table[k - 1] + slope[k - 1];
+    for (int iteration = 0; iteration < kNewtonIterations; iteration++) {
+      r -= (DistortRadius(r) - radius) / DistortRadiusDerivative(r);
+      r = std::min(std::max(r, 0.0f), max_r);
+    }
+    table[k] = r;
+    slope[k] = step / DistortRadiusDerivative(r);
+  }
+  inverse_table_.swap(table);
+  inverse_slope_.swap(slope);
+  inverse_step_ = step;
+
+  // The table is only used if it is increasing and agrees with the secant
+  // method to within kMaxInverseError, checked halfway between the entries
+  // where interpolation is least accurate.
+  for (int k = 0; k < kInverseTableSize - 1; k++) {
+    const float radius = step * (k + 0.5f);
+    if (!(inverse_table_[k + 1] > inverse_table_[k]) ||
+        !(std::fabs(TableInverseRadius(radius) - SecantInverseRadius(radius)) <=
+          kMaxInverseError)) {
+      inverse_table_.clear();
+      inverse_slope_.clear();
+      return;
+    }
+  }
+  inverse_max_radius_ = max_radius;
 }
 
 }  // namespace cardboard
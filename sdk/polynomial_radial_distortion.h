@@ -54,8 +54,26 @@ class PolynomialRadialDistortion {
 
   // Given a 2d point p, returns the point that would need to be passed to
   // Distort to get point p (approximately).
+  //
+  // Radii are looked up in a table of the inverse built for the coefficients,
+  // which agrees with the secant method to within kMaxInverseError. Beyond the
+  // table, or if it could not be made that accurate, the secant method is
+  // used.
   std::array<float, 2> DistortInverse(const std::array<float, 2>& p) const;
 
+  // Batch form of DistortInverse for n points, with their x and y coordinates
+  // in separate arrays. Points beyond the table are solved in lockstep, one
+  // coefficient at a time, so that the compiler can vectorise the polynomial
+  // evaluation. Results match DistortInverse.
+  void DistortInverse(const float* x, const float* y, int n, float* out_x,
+                      float* out_y) const;
+
+  // Largest difference allowed between the inverse table and the secant
+  // method, in tan-angle units. It is the tolerance the secant method stops
+  // at, which is itself a few times 1e-5 off for typical viewers, where the
+  // table is within 1e-6.
+  static constexpr float kMaxInverseError = 1e-4f;
+
  private:
   // Given a radius (measuring distance from the optical axis of the lens),
   // returns the distortion factor for that radius.
@@ -65,7 +83,40 @@ class PolynomialRadialDistortion {
   // returns the corresponding distorted radius.
   float DistortRadius(float r) const;
 
+  // Batch form of DistortRadius, with r_factor as scratch space for n floats.
+  void DistortRadii(const float* r, int n, float* r_factor, float* out) const;
+
+  // Derivative of DistortRadius at r.
+  float DistortRadiusDerivative(float r) const;
+
+  // Radius r for which DistortRadius(r) is radius, by the secant method.
+  float SecantInverseRadius(float radius) const;
+
+  // Batch form of SecantInverseRadius.
+  void SecantInverseRadii(const float* radius, int n, float* out) const;
+
+  // Radius r for which DistortRadius(r) is radius, from the inverse table.
+  // radius must not be greater than inverse_max_radius_.
+  float TableInverseRadius(float radius) const;
+
+  // Tabulates the inverse of DistortRadius, or leaves the table empty if it
+  // cannot be made accurate.
+  void BuildInverseTable();
+
+  static constexpr int kInverseTableSize = 256;
+  // Largest distorted radius tabulated, in tan-angle units.
+  static constexpr float kMaxInverseRadius = 4.0f;
+  static constexpr int kRangeSearchSteps = 1024;
+  static constexpr int kNewtonIterations = 3;
+
   std::vector<float> coefficients_;
+  // Undistorted radii at evenly spaced distorted radii from 0, and their
+  // derivatives scaled by the spacing.
+  std::vector<float> inverse_table_;
+  std::vector<float> inverse_slope_;
+  float inverse_step_ = 0.0f;
+  // Largest radius looked up in the table, negative if there is no table.
+  float inverse_max_radius_ = -1.0f;
 };
 
 }  // namespace cardboard